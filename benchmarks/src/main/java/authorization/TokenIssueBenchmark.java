@@ -0,0 +1,31 @@
+package authorization;
+
+import benchmarks.BenchmarkKeys;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AuthorizationServ#generateToken} with the configured signing key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenIssueBenchmark {
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException {
+        BenchmarkKeys.configure(Files.createTempDirectory("bench-keys"));
+    }
+
+    @Benchmark
+    public String generateToken(){
+        return AuthorizationServ.generateToken("alice");
+    }
+}
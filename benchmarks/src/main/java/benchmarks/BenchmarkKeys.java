@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Throwaway RSA key pair for benchmarks that go through the servers' configured keys.
+ * The servers read their keys once in static initializers, so the properties have to be
+ * set before the benchmarked class is first touched.
+ */
+public class BenchmarkKeys {
+    public static final String KID = "bench-1";
+
+    private BenchmarkKeys() {
+    }
+
+    /**
+     * Writes the pair to {@code directory} and points token.signing.key and token.verify.keys at it.
+     */
+    public static void configure(Path directory) throws IOException, GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair pair = generator.generateKeyPair();
+        Path privateKey = Files.write(directory.resolve("private_pcks8"), pair.getPrivate().getEncoded());
+        Path publicKey = Files.write(directory.resolve("public_der"), pair.getPublic().getEncoded());
+        System.setProperty("token.signing.key", KID + ":RS256:" + privateKey);
+        System.setProperty("token.verify.keys", KID + ":RS256:" + publicKey);
+    }
+}
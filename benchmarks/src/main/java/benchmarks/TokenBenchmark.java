@@ -0,0 +1,79 @@
+package benchmarks;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.TokenKeys;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issuing and verifying a token per signing algorithm, the way the authorization server
+ * signs and the resource server checks a token it has not cached yet.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenBenchmark {
+
+    @Param({TokenKeys.RS256, TokenKeys.ES256, TokenKeys.EDDSA})
+    public String algorithm;
+
+    private Algorithm signing;
+    private Algorithm verifying;
+    private String token;
+    private DecodedJWT decoded;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        KeyPairGenerator generator;
+        switch (algorithm){
+            case TokenKeys.RS256:
+                generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                break;
+            case TokenKeys.ES256:
+                generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec("secp256r1"));
+                break;
+            default:
+                generator = KeyPairGenerator.getInstance("Ed25519");
+        }
+        KeyPair pair = generator.generateKeyPair();
+        signing = TokenKeys.signing(algorithm, pair.getPrivate());
+        verifying = TokenKeys.verifying(algorithm, pair.getPublic());
+        token = issue();
+        decoded = JWT.decode(token);
+    }
+
+    @Benchmark
+    public String issue(){
+        return JWT.create()
+                .withKeyId("bench-1")
+                .withIssuer("sample-auth-server")
+                .withClaim("username", "alice")
+                .sign(signing);
+    }
+
+    @Benchmark
+    public void verify(Blackhole blackhole){
+        verifying.verify(decoded);
+        blackhole.consume(decoded);
+    }
+
+    @Benchmark
+    public void decodeAndVerify(Blackhole blackhole){
+        DecodedJWT jwt = JWT.decode(token);
+        verifying.verify(jwt);
+        blackhole.consume(jwt);
+    }
+}
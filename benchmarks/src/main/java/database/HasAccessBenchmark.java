@@ -0,0 +1,81 @@
+package database;
+
+import org.openjdk.jmh.annotations.*;
+import resource.AccessType;
+import resource.Resource;
+
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Database#hasAccess} against an in-memory H2 database in MySQL mode holding the
+ * accesses table and the user_access view. Measures the JDBC round trip and the query,
+ * not MySQL itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HasAccessBenchmark {
+    private static final int USERS = 100;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private ConnectionPool pool;
+    private Database database;
+    private Resource[] lookups;
+    private int next;
+
+    @Setup
+    public void setup() throws SQLException {
+        String url = "jdbc:h2:mem:hasAccess" + rows + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+        pool = new ConnectionPool(url, "sa", "", 4, 5_000, 0);
+        try (Connection connection = pool.getConnection()){
+            try (Statement statement = connection.createStatement()){
+                statement.execute("create table accesses(acc_path varchar(255) not null, is_dir boolean not null,"
+                        + " username varchar(64) not null, access_type varchar(64) not null,"
+                        + " primary key(username, acc_path, is_dir))");
+                statement.execute("create view user_access as"
+                        + " select username, acc_path, is_dir, access_type from accesses");
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "insert into accesses(acc_path, is_dir, username, access_type) values(?, false, ?, 'READ,WRITE')")){
+                for (int i = 0; i < rows; i++) {
+                    insert.setString(1, "resource/user" + (i % USERS) + "/file" + i + ".txt");
+                    insert.setString(2, "user" + (i % USERS));
+                    insert.addBatch();
+                    if(i % 1000 == 999)
+                        insert.executeBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+        database = new Database(pool);
+
+        Random random = new Random(42);
+        lookups = new Resource[1024];
+        for (int i = 0; i < lookups.length; i++) {
+            int row = random.nextInt(rows);
+            lookups[i] = new Resource(Paths.get("resource", "user" + (row % USERS), "file" + row + ".txt"),
+                    "user" + (row % USERS), AccessType.READ);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public boolean hasAccess(){
+        return database.hasAccess(lookups[next++ & (lookups.length - 1)]);
+    }
+}
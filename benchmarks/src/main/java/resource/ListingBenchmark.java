@@ -0,0 +1,54 @@
+package resource;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing one page of a directory listing with {@link ResourceServ#formJsonResource},
+ * attributes already read, the way writeListing turns every entry into JSON text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    private final List<Resource> resources = new ArrayList<>();
+    private final List<BasicFileAttributes> attributes = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        Path directory = Files.createTempDirectory("bench-listing");
+        for (int i = 0; i < entries; i++) {
+            Path file = Files.write(directory.resolve("file-" + i + ".txt"), new byte[i % 4096]);
+            resources.add(new Resource(Paths.get("resource", "alice", "file-" + i + ".txt"), "alice",
+                    AccessType.READ, AccessType.WRITE));
+            attributes.add(Files.readAttributes(file, BasicFileAttributes.class));
+        }
+    }
+
+    @Benchmark
+    public void formJsonResource(Blackhole blackhole){
+        StringBuilder listing = new StringBuilder("{\"files\":[");
+        for (int i = 0; i < entries; i++) {
+            if(i > 0)
+                listing.append(',');
+            listing.append(ResourceServ.formJsonResource(resources.get(i), attributes.get(i)).toString());
+        }
+        blackhole.consume(listing.append("]}"));
+    }
+}
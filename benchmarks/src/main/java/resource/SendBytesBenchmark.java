@@ -0,0 +1,88 @@
+package resource;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ResourceServ#sendBytes} into a loopback socket drained by another thread,
+ * through the heap copy loop and through the zero-copy {@link FileTransfer}.
+ * Throughput in bytes is ops/s times the file size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendBytesBenchmark {
+
+    @Param({"4096", "1048576", "67108864"})
+    public long size;
+
+    @Param({"copy", "transferTo"})
+    public String mode;
+
+    private Path file;
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private Thread drain;
+    private OutputStream rawO;
+    private ResourceServ serv;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("bench-send", ".bin");
+        byte[] block = new byte[64 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)){
+            for (long written = 0; written < size; written += block.length)
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+        }
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        peer = server.accept();
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (peer.read(buffer) >= 0)
+                    buffer.clear();
+            }catch (IOException e){
+                //Closed in tear down
+            }
+        }, "drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        rawO = new BufferedOutputStream(Channels.newOutputStream(client));
+        serv = new ResourceServ(null, null, mode.equals("transferTo") ? ResourceServ.blockingTransfer(client) : null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        client.close();
+        peer.close();
+        server.close();
+        drain.join();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void sendBytes() throws IOException {
+        serv.sendBytes(rawO, file, 0, size);
+    }
+}
@@ -0,0 +1,46 @@
+package resource;
+
+import benchmarks.BenchmarkKeys;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.openjdk.jmh.annotations.*;
+import utils.TokenKeys;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ResourceServ#tokenIsValid}, the signature and claim check a token goes through
+ * before it is cached.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenValidationBenchmark {
+    private DecodedJWT token;
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException {
+        Path keys = Files.createTempDirectory("bench-keys");
+        BenchmarkKeys.configure(keys);
+        TokenKeys.KeySpec signing = TokenKeys.parse(System.getProperty("token.signing.key")).get(0);
+        token = JWT.decode(JWT.create()
+                .withKeyId(BenchmarkKeys.KID)
+                .withIssuer("sample-auth-server")
+                .withClaim("username", "alice")
+                .sign(TokenKeys.signing(signing)));
+        if(!ResourceServ.tokenIsValid(token))
+            throw new IllegalStateException("Benchmark token does not verify");
+    }
+
+    @Benchmark
+    public boolean tokenIsValid(){
+        return ResourceServ.tokenIsValid(token);
+    }
+}
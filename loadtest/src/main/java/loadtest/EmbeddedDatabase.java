@@ -0,0 +1,79 @@
+package loadtest;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * In-memory H2 in MySQL mode with the tables the servers expect: users for the
+ * authorization server, accesses and the user_access view for the resource server.
+ * The keeper connection holds the database open for the whole run.
+ */
+class EmbeddedDatabase implements AutoCloseable {
+    static final String URL = "jdbc:h2:mem:loadtest;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    static final String USERNAME = "sa";
+    static final String PASSWORD = "";
+
+    private static final String[] SCHEMA = {
+            "create table users(username varchar(64) primary key, password_hash varchar(255) not null)",
+            "create table accesses(acc_path varchar(255) not null, is_dir boolean not null,"
+                    + " username varchar(64) not null, access_type varchar(64) not null,"
+                    + " primary key(username, acc_path, is_dir),"
+                    + " foreign key(username) references users(username) on delete cascade)",
+            "create view user_access as select username, acc_path, is_dir, access_type from accesses"
+    };
+    private static final String ALL_ACCESS = "READ,WRITE,DELETE,GRANT";
+
+    private final Connection keeper;
+
+    EmbeddedDatabase() throws SQLException {
+        keeper = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+        try (Statement statement = keeper.createStatement()){
+            for(String ddl : SCHEMA)
+                statement.execute(ddl);
+        }
+    }
+
+    /**
+     * Every user gets a home directory with full access to it and to each of its files.
+     * All users share one password hash, hashing once keeps start up fast at any iteration count.
+     */
+    void seed(int users, int filesPerUser, String passwordHash) throws SQLException {
+        keeper.setAutoCommit(false);
+        try (PreparedStatement user = keeper.prepareStatement("insert into users(username, password_hash) values(?, ?)");
+             PreparedStatement access = keeper.prepareStatement(
+                     "insert into accesses(acc_path, is_dir, username, access_type) values(?, ?, ?, ?)")){
+            for (int u = 0; u < users; u++) {
+                String username = LoadTest.username(u);
+                user.setString(1, username);
+                user.setString(2, passwordHash);
+                user.addBatch();
+
+                addAccess(access, LoadTest.homeDirectory(username), true, username);
+                for (int f = 0; f < filesPerUser; f++)
+                    addAccess(access, LoadTest.homeDirectory(username) + "/" + LoadTest.fileName(f), false, username);
+            }
+            user.executeBatch();
+            access.executeBatch();
+            keeper.commit();
+        }finally {
+            keeper.setAutoCommit(true);
+        }
+    }
+
+    private static void addAccess(PreparedStatement access, String path, boolean isDir, String username)
+            throws SQLException{
+        access.setString(1, path);
+        access.setBoolean(2, isDir);
+        access.setString(3, username);
+        access.setString(4, ALL_ACCESS);
+        access.addBatch();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        keeper.close();
+    }
+}
@@ -0,0 +1,73 @@
+package loadtest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Latencies of one operation as seen by one worker. Every sample is kept, the report
+ * merges the logs of all workers and reads exact percentiles from the sorted samples.
+ */
+class LatencyLog {
+    private long[] samples = new long[1024];
+    private int count;
+    private long errors;
+
+    void record(long nanos){
+        if(count == samples.length)
+            samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+    }
+
+    void error(){
+        errors++;
+    }
+
+    static Summary summarize(List<LatencyLog> logs){
+        int total = 0;
+        long errors = 0;
+        for(LatencyLog log : logs){
+            total += log.count;
+            errors += log.errors;
+        }
+        long[] merged = new long[total];
+        int position = 0;
+        for(LatencyLog log : logs){
+            System.arraycopy(log.samples, 0, merged, position, log.count);
+            position += log.count;
+        }
+        Arrays.sort(merged);
+        return new Summary(merged, errors);
+    }
+
+    static class Summary {
+        private final long[] sorted;
+        private final long errors;
+
+        Summary(long[] sorted, long errors) {
+            this.sorted = sorted;
+            this.errors = errors;
+        }
+
+        long getCount(){
+            return sorted.length;
+        }
+
+        long getErrors(){
+            return errors;
+        }
+
+        /**
+         * @return latency in nanoseconds that {@code percentile} percent of the requests did not exceed
+         */
+        long percentile(double percentile){
+            if(sorted.length == 0)
+                return 0;
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        long max(){
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package loadtest;
+
+import authorization.PasswordHash;
+import resource.SelectorServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * Starts the authorization and resource servers in this JVM against an embedded database
+ * and a synthetic file tree, drives them with a mix of requests from several client threads
+ * and prints throughput and latency percentiles per operation.
+ * The servers resolve resources against the working directory, so run it from a scratch
+ * directory: it creates resource/load* there and removes it at the end.
+ * Other server properties pass through, -Daccess.index=false sends every access check and
+ * listing to the SQL in Database instead of the in-memory index.
+ */
+public class LoadTest {
+    static final String PASSWORD = "loadtest-password";
+    private static final String USAGE = "USAGE: loadtest.LoadTest [--name=value ...]\n"
+            + "  --threads=16             client threads\n"
+            + "  --duration=30            measured seconds\n"
+            + "  --warmup=5               seconds before measuring starts\n"
+            + "  --users=20               seeded users\n"
+            + "  --files=100              files per user\n"
+            + "  --file-size=16384        bytes per seeded file\n"
+            + "  --upload-size=65536      bytes per upload\n"
+            + "  --mix=token=2,get=50,list=20,upload=10,grant=8,delete=10\n"
+            + "  --mode=blocking          resource server mode: blocking, virtual or nio\n"
+            + "  --hash-iterations=N      PBKDF2 iterations of the seeded passwords\n"
+            + "  --seed=42                random seed of the clients\n"
+            + "  --log-level=WARNING      level of the servers' loggers\n"
+            + "  --verbose                keep the servers' System.out output";
+
+    static String username(int index){
+        return "load" + index;
+    }
+
+    static String homeDirectory(String username){
+        return "resource/" + username;
+    }
+
+    static String fileName(int index){
+        return "file-" + index + ".txt";
+    }
+
+    static class Options {
+        int threads = 16;
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        int users = 20;
+        int filesPerUser = 100;
+        int fileSize = 16 * 1024;
+        int uploadSize = 64 * 1024;
+        String mode = "blocking";
+        int hashIterations = PasswordHash.DEFAULT_ITERATIONS;
+        long seed = 42;
+        Level logLevel = Level.WARNING;
+        boolean verbose;
+        private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        private int totalWeight;
+
+        static Options parse(String[] args){
+            Options options = new Options();
+            options.setMix("token=2,get=50,list=20,upload=10,grant=8,delete=10");
+            for(String arg : args){
+                if(arg.equals("--verbose")){
+                    options.verbose = true;
+                    continue;
+                }
+                int equals = arg.indexOf('=');
+                if(!arg.startsWith("--") || equals == -1)
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+                String value = arg.substring(equals + 1);
+                switch (arg.substring(2, equals)){
+                    case "threads": options.threads = Integer.parseInt(value); break;
+                    case "duration": options.durationSeconds = Integer.parseInt(value); break;
+                    case "warmup": options.warmupSeconds = Integer.parseInt(value); break;
+                    case "users": options.users = Integer.parseInt(value); break;
+                    case "files": options.filesPerUser = Integer.parseInt(value); break;
+                    case "file-size": options.fileSize = Integer.parseInt(value); break;
+                    case "upload-size": options.uploadSize = Integer.parseInt(value); break;
+                    case "mix": options.setMix(value); break;
+                    case "mode": options.mode = value; break;
+                    case "hash-iterations": options.hashIterations = Integer.parseInt(value); break;
+                    case "seed": options.seed = Long.parseLong(value); break;
+                    case "log-level": options.logLevel = Level.parse(value); break;
+                    default: throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            }
+            if(!(options.mode.equals("blocking") || options.mode.equals("virtual") || options.mode.equals("nio")))
+                throw new IllegalArgumentException("Unknown mode " + options.mode);
+            if(options.threads < 1 || options.users < 1 || options.filesPerUser < 1 || options.durationSeconds < 1)
+                throw new IllegalArgumentException("threads, users, files and duration must be positive");
+            return options;
+        }
+
+        private void setMix(String value){
+            mix.clear();
+            totalWeight = 0;
+            for(String entry : value.split(",")){
+                String[] parts = entry.split("=");
+                if(parts.length != 2)
+                    throw new IllegalArgumentException("Mix entry must be operation=weight, got " + entry);
+                int weight = Integer.parseInt(parts[1].trim());
+                if(weight < 0)
+                    throw new IllegalArgumentException("Negative weight " + entry);
+                mix.put(Operation.fromName(parts[0].trim()), weight);
+                totalWeight += weight;
+            }
+            if(totalWeight == 0)
+                throw new IllegalArgumentException("Mix has no weight");
+        }
+
+        Operation pick(Random random){
+            int ticket = random.nextInt(totalWeight);
+            for(Map.Entry<Operation, Integer> entry : mix.entrySet()){
+                ticket -= entry.getValue();
+                if(ticket < 0)
+                    return entry.getKey();
+            }
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public String toString() {
+            return "threads=" + threads + " duration=" + durationSeconds + "s warmup=" + warmupSeconds
+                    + "s users=" + users + " files=" + filesPerUser + " fileSize=" + fileSize
+                    + " uploadSize=" + uploadSize + " mode=" + mode + " hashIterations=" + hashIterations
+                    + " mix=" + mix;
+        }
+    }
+
+    /**
+     * Shared state of a run: where the servers listen and the measured window.
+     */
+    static class Run {
+        private final int authorizationPort;
+        private final int resourcePort;
+        private volatile long measureFrom = Long.MAX_VALUE;
+        private volatile long stopAt = Long.MAX_VALUE;
+        private volatile String failure;
+
+        Run(int authorizationPort, int resourcePort) {
+            this.authorizationPort = authorizationPort;
+            this.resourcePort = resourcePort;
+        }
+
+        String authorizationUrl(){
+            return "http://127.0.0.1:" + authorizationPort + "/";
+        }
+
+        String resourceUrl(){
+            return "http://127.0.0.1:" + resourcePort + "/";
+        }
+
+        void schedule(long warmupNanos, long durationNanos){
+            long now = System.nanoTime();
+            measureFrom = now + warmupNanos;
+            stopAt = measureFrom + durationNanos;
+        }
+
+        boolean isMeasured(long start){
+            return start >= measureFrom && start < stopAt;
+        }
+
+        boolean isOver(){
+            return failure != null || System.nanoTime() >= stopAt;
+        }
+
+        void fail(String message, Throwable cause){
+            failure = cause == null ? message : message + ": " + cause;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())){
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void startDaemon(String name, Runnable server){
+        Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true){
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            }catch (IOException e){
+                if(System.nanoTime() > deadline)
+                    throw new IOException("Server on port " + port + " did not start", e);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Key pair for this run only, the servers read the paths in their static initializers.
+     */
+    private static void configureKeys(Path directory) throws IOException, GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair pair = generator.generateKeyPair();
+        Path privateKey = Files.write(directory.resolve("private_pcks8"), pair.getPrivate().getEncoded());
+        Path publicKey = Files.write(directory.resolve("public_der"), pair.getPublic().getEncoded());
+        System.setProperty("token.signing.key", "loadtest:RS256:" + privateKey);
+        System.setProperty("token.verify.keys", "loadtest:RS256:" + publicKey);
+    }
+
+    /**
+     * Properties the servers read in their static initializers, set before any of their classes load.
+     * Their loggers write a FINER line to the console for every request by default, which would be
+     * measured instead of the servers.
+     */
+    private static void configureServers(Path scratch, Options options) throws IOException, GeneralSecurityException {
+        configureKeys(scratch);
+        System.setProperty("log.level", options.logLevel.getName());
+        System.setProperty("db.url", EmbeddedDatabase.URL);
+        System.setProperty("db.user", EmbeddedDatabase.USERNAME);
+        System.setProperty("db.password", EmbeddedDatabase.PASSWORD);
+        System.setProperty("auth.users", EmbeddedDatabase.URL);
+        System.setProperty("auth.db.user", EmbeddedDatabase.USERNAME);
+        System.setProperty("auth.db.password", EmbeddedDatabase.PASSWORD);
+        System.setProperty("compress.cache.dir", scratch.resolve("compressed").toString());
+    }
+
+    private static void createFiles(Options options) throws IOException {
+        byte[] content = new byte[options.fileSize];
+        new Random(options.seed).nextBytes(content);
+        for (int u = 0; u < options.users; u++) {
+            Path home = Paths.get(homeDirectory(username(u)));
+            deleteTree(home);
+            Files.createDirectories(home);
+            for (int f = 0; f < options.filesPerUser; f++)
+                Files.write(home.resolve(fileName(f)), content);
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if(!Files.exists(root))
+            return;
+        try (Stream<Path> paths = Files.walk(root)){
+            List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            all.sort(Comparator.reverseOrder());
+            for(Path path : all)
+                Files.deleteIfExists(path);
+        }
+    }
+
+    private static void report(PrintStream out, Options options, List<Worker> workers){
+        out.printf("%-8s %9s %7s %10s %9s %9s %9s %9s %9s%n",
+                "op", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        List<LatencyLog> all = new ArrayList<>();
+        for(Operation operation : Operation.values()){
+            List<LatencyLog> logs = new ArrayList<>();
+            for(Worker worker : workers)
+                logs.add(worker.getLog(operation));
+            all.addAll(logs);
+            LatencyLog.Summary summary = LatencyLog.summarize(logs);
+            if(summary.getCount() > 0)
+                printRow(out, operation.getName(), summary, options.durationSeconds);
+        }
+        printRow(out, "total", LatencyLog.summarize(all), options.durationSeconds);
+    }
+
+    private static void printRow(PrintStream out, String name, LatencyLog.Summary summary, int seconds){
+        out.printf("%-8s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, summary.getCount(),
+                summary.getErrors(), (double) summary.getCount() / seconds,
+                millis(summary.percentile(50)), millis(summary.percentile(90)), millis(summary.percentile(99)),
+                millis(summary.percentile(99.9)), millis(summary.max()));
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, SQLException,
+            GeneralSecurityException {
+        Options options;
+        try {
+            if(args.length == 1 && args[0].equals("--help")){
+                System.out.println(USAGE);
+                return;
+            }
+            options = Options.parse(args);
+        }catch (IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(-1);
+            return;
+        }
+        PrintStream out = System.out;
+        out.println("Load test: " + options);
+
+        Path scratch = Files.createTempDirectory("loadtest");
+        configureServers(scratch, options);
+        try (EmbeddedDatabase database = new EmbeddedDatabase()){
+            database.seed(options.users, options.filesPerUser,
+                    PasswordHash.hash(PASSWORD.toCharArray(), options.hashIterations));
+            createFiles(options);
+
+            int authorizationPort = freePort();
+            int resourcePort = freePort();
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            startDaemon("authorization-server", () -> new authorization.Server(authorizationPort, 0, loopback,
+                    options.mode.equals("virtual")).start());
+            startDaemon("resource-server", options.mode.equals("nio")
+                    ? () -> new SelectorServer(resourcePort, 0, loopback).start()
+                    : () -> new resource.Server(resourcePort, 0, loopback, options.mode.equals("virtual")).start());
+            awaitPort(authorizationPort);
+            awaitPort(resourcePort);
+            if(!options.verbose)
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            Run run = new Run(authorizationPort, resourcePort);
+            run.schedule(TimeUnit.SECONDS.toNanos(options.warmupSeconds),
+                    TimeUnit.SECONDS.toNanos(options.durationSeconds));
+            List<Worker> workers = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < options.threads; i++) {
+                Worker worker = new Worker(i, options, run);
+                workers.add(worker);
+                Thread thread = new Thread(worker, "loadtest-client-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+            for(Thread thread : threads)
+                thread.join();
+            System.setOut(out);
+
+            if(run.failure != null)
+                out.println("Run failed: " + run.failure);
+            report(out, options, workers);
+        }finally {
+            for (int u = 0; u < options.users; u++)
+                deleteTree(Paths.get(homeDirectory(username(u))));
+            deleteTree(scratch);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,31 @@
+package loadtest;
+
+/**
+ * Kinds of requests the load test replays, named as in the --mix option.
+ */
+enum Operation {
+    TOKEN("token"),
+    GET("get"),
+    LIST("list"),
+    UPLOAD("upload"),
+    GRANT("grant"),
+    DELETE("delete");
+
+    private final String name;
+
+    Operation(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    static Operation fromName(String name){
+        for(Operation operation : values()){
+            if(operation.name.equals(name))
+                return operation;
+        }
+        throw new IllegalArgumentException("Unknown operation " + name);
+    }
+}
@@ -0,0 +1,175 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One client thread: logs in once, then sends requests drawn from the mix back to back
+ * over its own keep-alive connections until the run ends. Only requests started inside the
+ * measured window are recorded.
+ */
+class Worker implements Runnable {
+    private static final int LOGIN_ATTEMPTS = 60;
+
+    private final int id;
+    private final LoadTest.Options options;
+    private final LoadTest.Run run;
+    private final Random random;
+    private final HttpClient client;
+    private final String username;
+    private final byte[] upload;
+    private final Map<Operation, LatencyLog> logs = new EnumMap<>(Operation.class);
+    private final Deque<String> uploaded = new ArrayDeque<>();
+    private String token;
+    private int uploads;
+
+    Worker(int id, LoadTest.Options options, LoadTest.Run run) {
+        this.id = id;
+        this.options = options;
+        this.run = run;
+        this.random = new Random(options.seed + id);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.username = LoadTest.username(id % options.users);
+        this.upload = new byte[options.uploadSize];
+        random.nextBytes(upload);
+        for(Operation operation : Operation.values())
+            logs.put(operation, new LatencyLog());
+    }
+
+    LatencyLog getLog(Operation operation){
+        return logs.get(operation);
+    }
+
+    @Override
+    public void run() {
+        try {
+            token = logIn();
+        }catch (IOException | InterruptedException e){
+            run.fail("Worker " + id + " can't log in", e);
+            return;
+        }
+        if(token == null){
+            run.fail("Worker " + id + " was refused a token", null);
+            return;
+        }
+        while (!run.isOver()){
+            Operation operation = options.pick(random);
+            if(operation == Operation.DELETE && uploaded.isEmpty())
+                operation = Operation.UPLOAD;
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                ok = execute(operation);
+            }catch (IOException e){
+                ok = false;
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long end = System.nanoTime();
+            if(run.isMeasured(start)){
+                LatencyLog log = logs.get(operation);
+                log.record(end - start);
+                if(!ok)
+                    log.error();
+            }
+        }
+    }
+
+    boolean execute(Operation operation) throws IOException, InterruptedException {
+        switch (operation){
+            case TOKEN:
+                return issueToken() != null;
+            case GET:
+                return send(request(randomFile(username)).GET()) == 200;
+            case LIST:
+                //Seeded homes are never empty, Database answers a failed query with no rows
+                HttpRequest list = request(LoadTest.homeDirectory(username) + "/").GET().build();
+                HttpResponse<String> listing = client.send(list, HttpResponse.BodyHandlers.ofString());
+                return listing.statusCode() == 200 && !listing.body().startsWith("{\"files\":[]");
+            case UPLOAD:
+                String path = LoadTest.homeDirectory(username) + "/up-" + id + "-" + uploads++ + ".bin";
+                boolean ok = send(request(path).POST(HttpRequest.BodyPublishers.ofByteArray(upload))) == 200;
+                if(ok)
+                    uploaded.add(path);
+                return ok;
+            case GRANT:
+                String toUser = LoadTest.username(random.nextInt(options.users));
+                String grant = "{\"to_user\":\"" + toUser + "\",\"path\":\""
+                        + randomFile(username).substring("resource/".length()) + "\",\"access_type\":\"READ\"}";
+                return send(request("access").POST(HttpRequest.BodyPublishers.ofString(grant))) == 200;
+            case DELETE:
+                return send(request(uploaded.poll()).DELETE()) == 200;
+            default:
+                throw new IllegalStateException(operation.toString());
+        }
+    }
+
+    private String randomFile(String user){
+        return LoadTest.homeDirectory(user) + "/" + LoadTest.fileName(random.nextInt(options.filesPerUser));
+    }
+
+    private HttpRequest.Builder request(String path){
+        return HttpRequest.newBuilder(URI.create(run.resourceUrl() + path))
+                .header("Authorization", "Bearer " + token)
+                .timeout(Duration.ofSeconds(30));
+    }
+
+    private int send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    /**
+     * @return null if the login was refused
+     */
+    private String issueToken() throws IOException, InterruptedException {
+        HttpResponse<String> response = requestToken();
+        return response.statusCode() == 200 ? accessToken(response.body()) : null;
+    }
+
+    /**
+     * The first logins of all workers arrive together and the hashing pool answers what it can't
+     * check in time with 503 and Retry-After, those are sent again after the pause.
+     * @return null if the login was refused
+     */
+    private String logIn() throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            HttpResponse<String> response = requestToken();
+            if(response.statusCode() == 200)
+                return accessToken(response.body());
+            if(response.statusCode() != 503 || attempt == LOGIN_ATTEMPTS)
+                return null;
+            long seconds = response.headers().firstValueAsLong("Retry-After").orElse(1);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        }
+    }
+
+    private HttpResponse<String> requestToken() throws IOException, InterruptedException {
+        String form = "username=" + username + "&password=" + LoadTest.PASSWORD
+                + "&grant_type=password&client_id=loadtest&client_secret=loadtest";
+        HttpRequest request = HttpRequest.newBuilder(URI.create(run.authorizationUrl()))
+                .POST(HttpRequest.BodyPublishers.ofString(form, StandardCharsets.UTF_8))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String accessToken(String body){
+        int start = body.indexOf("\"access_token\":\"") + "\"access_token\":\"".length();
+        return body.substring(start, body.indexOf('"', start));
+    }
+}
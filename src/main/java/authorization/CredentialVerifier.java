@@ -0,0 +1,149 @@
+package authorization;
+
+import utils.FineLogger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks logins against a {@link UserStore}. Password hashing is slow on purpose, so it runs on
+ * its own fixed pool of threads with a bounded queue instead of on the request threads:
+ * at most {@code threads} hashes run at once, and when the queue is full a login is refused
+ * right away instead of piling up behind a credential stuffing burst. Unknown usernames are
+ * remembered for a while and rejected without asking the store again.
+ */
+public class CredentialVerifier {
+    private static final Logger logger = FineLogger.getLogger(CredentialVerifier.class.getName());
+
+    public enum Result {
+        ACCEPTED,
+        REJECTED,
+        /** The hashing queue is full, the wait timed out or the store failed, the client should retry later */
+        UNAVAILABLE
+    }
+
+    private final UserStore store;
+    private final ThreadPoolExecutor hashPool;
+    private final long timeoutMillis;
+    private final long unknownTtlMillis;
+    private final Map<String, Long> unknownUsers;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder unknownHits = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * @param queueSize logins waiting for a hashing thread, more are refused
+     * @param timeoutMillis how long a request thread waits for its hash
+     * @param unknownUsersSize how many unknown usernames are remembered, 0 disables it
+     */
+    public CredentialVerifier(UserStore store, int threads, int queueSize, long timeoutMillis,
+                              int unknownUsersSize, long unknownTtlMillis) {
+        this.store = store;
+        this.timeoutMillis = timeoutMillis;
+        this.unknownTtlMillis = unknownTtlMillis;
+        AtomicInteger count = new AtomicInteger();
+        this.hashPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread thread = new Thread(r, "password-hash-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.unknownUsers = new LinkedHashMap<String, Long>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > unknownUsersSize;
+            }
+        };
+    }
+
+    private boolean isKnownUnknown(String username){
+        synchronized (unknownUsers){
+            Long expiresAt = unknownUsers.get(username);
+            if(expiresAt == null)
+                return false;
+            if(expiresAt > System.currentTimeMillis())
+                return true;
+            unknownUsers.remove(username);
+            return false;
+        }
+    }
+
+    private void rememberUnknown(String username){
+        synchronized (unknownUsers){
+            unknownUsers.put(username, System.currentTimeMillis() + unknownTtlMillis);
+        }
+    }
+
+    public Result verify(String username, String password){
+        if(username == null || username.isEmpty() || password == null){
+            rejected.increment();
+            return Result.REJECTED;
+        }
+        if(isKnownUnknown(username)){
+            unknownHits.increment();
+            rejected.increment();
+            return Result.REJECTED;
+        }
+
+        String hash;
+        try {
+            hash = store.passwordHash(username);
+        }catch (Exception e){
+            logger.log(Level.WARNING, "Can't look up user " + username, e);
+            return Result.UNAVAILABLE;
+        }
+        if(hash == null){
+            rememberUnknown(username);
+            rejected.increment();
+            return Result.REJECTED;
+        }
+
+        Future<Boolean> check;
+        try {
+            check = hashPool.submit(() -> PasswordHash.verify(password.toCharArray(), hash));
+        }catch (RejectedExecutionException e){
+            refused.increment();
+            logger.fine(() -> "Hashing queue is full, refused login of " + username);
+            return Result.UNAVAILABLE;
+        }
+        try {
+            boolean matches = check.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            (matches ? accepted : rejected).increment();
+            return matches ? Result.ACCEPTED : Result.REJECTED;
+        }catch (TimeoutException e){
+            check.cancel(true);
+            refused.increment();
+            logger.fine(() -> "Hashing took over " + timeoutMillis + "ms, refused login of " + username);
+            return Result.UNAVAILABLE;
+        }catch (InterruptedException e){
+            check.cancel(true);
+            Thread.currentThread().interrupt();
+            return Result.UNAVAILABLE;
+        }catch (ExecutionException e){
+            logger.log(Level.WARNING, "Can't hash password of " + username, e.getCause());
+            return Result.UNAVAILABLE;
+        }
+    }
+
+    public int getQueueDepth(){
+        return hashPool.getQueue().size();
+    }
+
+    public int getActiveCount(){
+        return hashPool.getActiveCount();
+    }
+
+    @Override
+    public String toString() {
+        return "CredentialVerifier[accepted=" + accepted.sum() + ", rejected=" + rejected.sum()
+                + ", unknownHits=" + unknownHits.sum() + ", refused=" + refused.sum()
+                + ", queued=" + getQueueDepth() + "]";
+    }
+}
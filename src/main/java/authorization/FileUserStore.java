@@ -0,0 +1,51 @@
+package authorization;
+
+import utils.FineLogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Users from a text file with one {@code username:hash} per line, lines starting with # are skipped.
+ * The file is read once, {@link #reload()} picks up changes.
+ */
+public final class FileUserStore implements UserStore {
+    private static final Logger logger = FineLogger.getLogger(FileUserStore.class.getName());
+
+    private final Path file;
+    private volatile Map<String, String> users;
+
+    public FileUserStore(Path file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    public void reload() throws IOException {
+        Map<String, String> loaded = new HashMap<>();
+        int lineNumber = 0;
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)){
+            lineNumber++;
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+            int colon = line.indexOf(':');
+            if(colon <= 0 || !PasswordHash.isWellFormed(line.substring(colon + 1))){
+                logger.warning("Skipping malformed line " + lineNumber + " of " + file);
+                continue;
+            }
+            loaded.put(line.substring(0, colon), line.substring(colon + 1));
+        }
+        users = loaded;
+        logger.config("Loaded " + loaded.size() + " users from " + file);
+    }
+
+    @Override
+    public String passwordHash(String username) {
+        return users.get(username);
+    }
+}
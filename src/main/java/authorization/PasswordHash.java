@@ -0,0 +1,93 @@
+package authorization;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes stored as
+ * {@code pbkdf2-sha256$iterations$salt$hash} with base64 salt and hash.
+ * The iteration count is part of the stored string, so it can be raised for new
+ * hashes without invalidating old ones.
+ */
+public class PasswordHash {
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    public static final int DEFAULT_ITERATIONS = Integer.getInteger("auth.hash.iterations", 310_000);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHash() {
+    }
+
+    public static String hash(char[] password){
+        return hash(password, DEFAULT_ITERATIONS);
+    }
+
+    public static String hash(char[] password, int iterations){
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + iterations + "$" + encoder.encodeToString(salt)
+                + "$" + encoder.encodeToString(pbkdf2(password, salt, iterations, HASH_LENGTH));
+    }
+
+    /**
+     * @return true if the string has the stored hash format, verifying anything else always fails
+     */
+    public static boolean isWellFormed(String stored){
+        String[] parts = stored.split("\\$");
+        if(parts.length != 4 || !parts[0].equals(PREFIX))
+            return false;
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            return Integer.parseInt(parts[1]) > 0 && decoder.decode(parts[2]).length > 0
+                    && decoder.decode(parts[3]).length > 0;
+        }catch (IllegalArgumentException e){
+            return false;
+        }
+    }
+
+    /**
+     * Runs the full key derivation, this is the slow part of a login.
+     */
+    public static boolean verify(char[] password, String stored){
+        if(!isWellFormed(stored))
+            return false;
+        String[] parts = stored.split("\\$");
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] expected = decoder.decode(parts[3]);
+        byte[] actual = pbkdf2(password, decoder.decode(parts[2]), Integer.parseInt(parts[1]), expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int length){
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        }catch (GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Prints the hash of a password for a users file or the users table.
+     */
+    public static void main(String[] args) {
+        if(args.length != 1){
+            System.out.println("USAGE: authorization.PasswordHash password");
+            System.exit(-1);
+        }
+        char[] password = args[0].toCharArray();
+        System.out.println(hash(password));
+        Arrays.fill(password, '\0');
+    }
+}
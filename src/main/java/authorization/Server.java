@@ -1,13 +1,19 @@
 package authorization;
 
+import database.ConnectionPool;
+import database.UserDatabase;
+import utils.AsyncHandler;
 import utils.FineLogger;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,10 +23,23 @@ public class Server {
     private final int port;
     private final int query;
     private final InetAddress address;
+    private final boolean virtualThreads;
     private static Logger errorLog;
     private static Logger requests;
 
     public static final int NUMBER_OF_THREADS = 10;
+    public static final String USERS = System.getProperty("auth.users");
+    public static final String DB_USERNAME = System.getProperty("auth.db.user", "root");
+    public static final String DB_PASSWORD = System.getProperty("auth.db.password", "");
+    public static final int DB_POOL_SIZE = Integer.getInteger("auth.db.pool.size", 4);
+    public static final long DB_ACQUIRE_TIMEOUT = Long.getLong("db.pool.acquireTimeout", 5_000);
+    public static final long DB_LEAK_THRESHOLD = Long.getLong("db.pool.leakThreshold", 60_000);
+    public static final int HASH_THREADS
+            = Integer.getInteger("auth.hash.threads", Runtime.getRuntime().availableProcessors());
+    public static final int HASH_QUEUE_SIZE = Integer.getInteger("auth.hash.queue", 64);
+    public static final long HASH_TIMEOUT = Long.getLong("auth.hash.timeout", 2_000);
+    public static final int UNKNOWN_USERS_SIZE = Integer.getInteger("auth.unknownUsers.size", 10_000);
+    public static final long UNKNOWN_USERS_TTL = Long.getLong("auth.unknownUsers.ttl", 60_000);
 
     static{
         errorLog = FineLogger.getLogger("Error");
@@ -29,14 +48,77 @@ public class Server {
 
 
     public Server(int port, int query, InetAddress address) {
+        this(port, query, address, false);
+    }
+
+    /**
+     * @param virtualThreads run every connection on its own virtual thread instead of
+     *                       the fixed pool of {@link #NUMBER_OF_THREADS} platform threads
+     */
+    public Server(int port, int query, InetAddress address, boolean virtualThreads) {
         this.port = port;
         this.query = query;
         this.address = address;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * auth.users is either file:path of a users file or a JDBC URL of a database with a users table.
+     * @return null if no users are configured, every login is accepted then
+     */
+    static CredentialVerifier newCredentialVerifier() throws IOException, SQLException{
+        if(USERS == null){
+            errorLog.warning("auth.users is not set, every login is accepted");
+            return null;
+        }
+        UserStore store;
+        if(USERS.startsWith("file:")){
+            store = new FileUserStore(Paths.get(USERS.substring("file:".length())));
+        }else {
+            store = new UserDatabase(new ConnectionPool(USERS, DB_USERNAME, DB_PASSWORD, DB_POOL_SIZE,
+                    DB_ACQUIRE_TIMEOUT, DB_LEAK_THRESHOLD));
+        }
+        return new CredentialVerifier(store, HASH_THREADS, HASH_QUEUE_SIZE, HASH_TIMEOUT,
+                UNKNOWN_USERS_SIZE, UNKNOWN_USERS_TTL);
+    }
+
+    /**
+     * Worker and hashing pool numbers shown by /metrics.
+     */
+    static void registerMetrics(ExecutorService workers, CredentialVerifier credentials){
+        if(workers instanceof ThreadPoolExecutor){
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) workers;
+            AuthorizationServ.METRICS.gauge("executor_queue_depth", "Tasks waiting for a worker thread.",
+                    () -> executor.getQueue().size());
+            AuthorizationServ.METRICS.gauge("executor_active_workers", "Worker threads running a task.",
+                    executor::getActiveCount);
+        }
+        if(credentials != null){
+            AuthorizationServ.METRICS.gauge("hash_queue_depth", "Logins waiting for a hashing thread.",
+                    credentials::getQueueDepth);
+            AuthorizationServ.METRICS.gauge("hash_active_workers", "Hashing threads checking a password.",
+                    credentials::getActiveCount);
+        }
+        AuthorizationServ.METRICS.counter("log_dropped_records", "Log records dropped because the log buffer was full.",
+                AsyncHandler::totalDropped);
+    }
+
+    static ExecutorService newExecutor(boolean virtualThreads){
+        return virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(NUMBER_OF_THREADS);
     }
 
 
     public void start(){
-        ExecutorService service = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        CredentialVerifier credentials;
+        try {
+            credentials = newCredentialVerifier();
+        }catch (IOException | SQLException ex){
+            errorLog.log(Level.SEVERE, "Can't open user store " + USERS, ex);
+            return;
+        }
+        ExecutorService service = newExecutor(virtualThreads);
+        registerMetrics(service, credentials);
 
         try(ServerSocket serverSocket = new ServerSocket(port, query, address)){
 
@@ -46,8 +128,10 @@ public class Server {
             while (true){
                 try {
                     Socket client = serverSocket.accept();
-                    requests.fine("Client " + client.getInetAddress() + " connected");
-                    Runnable requestFile = new AuthorizationServ(client);
+                    //Head and body go out as separate writes, Nagle would hold the body for the delayed ACK
+                    client.setTcpNoDelay(true);
+                    requests.fine(() -> "Client " + client.getInetAddress() + " connected");
+                    Runnable requestFile = new AuthorizationServ(client, credentials);
                     service.submit(requestFile);
                 }catch (IOException ex){
                     requests.log(Level.CONFIG, "Client disconnected", ex);
@@ -24,18 +24,21 @@ public class ServerMain {
     public static void main(String[] args) throws IOException
     {
         int port = 0;
+        String mode = "pool";
 
         if(args.length == 0)
             port = 6789;
-        else if(args.length == 1)
+        else if(args.length <= 2)
             port = parsePort(args[0]);
+        if(args.length == 2)
+            mode = args[1];
 
-        if(port == -1 || args.length > 1){
-            System.out.println("USAGE: authorization.Server [port_number]");
+        if(port == -1 || args.length > 2 || !(mode.equals("pool") || mode.equals("virtual"))){
+            System.out.println("USAGE: authorization.Server [port_number] [pool|virtual]");
             System.exit(-1);
         }
 
-        Server server = new Server(port, 0, InetAddress.getLoopbackAddress());
+        Server server = new Server(port, 0, InetAddress.getLoopbackAddress(), mode.equals("virtual"));
         server.start();
     }
 }
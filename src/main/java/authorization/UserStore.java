@@ -0,0 +1,12 @@
+package authorization;
+
+/**
+ * Where user credentials come from. Implementations only look the hash up,
+ * checking the password against it is up to {@link CredentialVerifier}.
+ */
+public interface UserStore {
+    /**
+     * @return stored {@link PasswordHash} string of the user or null if there is no such user
+     */
+    String passwordHash(String username) throws Exception;
+}
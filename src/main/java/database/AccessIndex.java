@@ -0,0 +1,316 @@
+package database;
+
+import resource.Access;
+import resource.AccessType;
+import resource.Page;
+import resource.Resource;
+import resource.ResourceServ;
+import utils.FineLogger;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * In-memory copy of the access table in front of {@link Database}. Grants are grouped per user
+ * and per parent directory, so "does U hold T on P" is two hash lookups and "children of X
+ * visible to U" reads one sorted map, instead of LIKE/INSTR scans in MySQL.
+ * The index is loaded once and kept in sync by writes that go through it; rows changed
+ * directly in the database are only picked up by {@link #reload()}.
+ * Usernames and paths are compared ignoring case, like the default collation of the MySQL
+ * columns, so both answer the same. Listings filtered by anything but "path", "access_type"
+ * and "is_dir", or by a path that doesn't end with "/", are answered by {@link Database}.
+ */
+public final class AccessIndex implements Access<String, Resource> {
+    private static final Logger logger = FineLogger.getLogger(AccessIndex.class.getName());
+    private static final String allAccesses = "select username, acc_path, is_dir, access_type from user_access";
+    private static final Set<String> SUPPORTED_PARAMS
+            = new HashSet<>(Arrays.asList("path", "access_type", "is_dir"));
+
+    private final Database delegate;
+    private final ConnectionPool pool;
+    private volatile ConcurrentMap<String, UserIndex> users = new ConcurrentHashMap<>();
+
+    public AccessIndex(Database delegate, ConnectionPool pool) throws SQLException {
+        Objects.requireNonNull(delegate);
+        Objects.requireNonNull(pool);
+        this.delegate = delegate;
+        this.pool = pool;
+        reload();
+    }
+
+    /**
+     * Replaces the index with the current content of the access table.
+     */
+    public void reload() throws SQLException {
+        ConcurrentMap<String, UserIndex> loaded = new ConcurrentHashMap<>();
+        int rows = 0;
+        try (Connection connection = pool.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(allAccesses);
+             ResultSet resultSet = preparedStatement.executeQuery()){
+            while (resultSet.next()){
+                loaded.computeIfAbsent(fold(resultSet.getString(1)), u -> new UserIndex())
+                        .add(resultSet.getString(2), resultSet.getBoolean(3), resultSet.getString(4));
+                rows++;
+            }
+        }
+        users = loaded;
+        logger.fine("Loaded " + rows + " accesses of " + loaded.size() + " users");
+    }
+
+    private static String pathOf(Resource resource){
+        return ResourceServ.unixLikePath(resource.getPath().toString());
+    }
+
+    private static String accessTypeString(Resource resource){
+        return Arrays.toString(resource.getAccessTypes()).replaceAll("\\[|\\]| ", "");
+    }
+
+    /**
+     * Same test as {@code access_type like '%READ, WRITE%'} on a case-insensitive column.
+     */
+    private static String accessTypePattern(Resource resource){
+        return Arrays.toString(resource.getAccessTypes()).replaceAll("\\[|\\]", "").toUpperCase();
+    }
+
+    /**
+     * Key of a username or parent directory, equal for names the case-insensitive collation treats as equal.
+     */
+    private static String fold(String name){
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    static String parentOf(String path){
+        int slash = path.lastIndexOf('/');
+        return slash == -1 ? "" : path.substring(0, slash + 1);
+    }
+
+    @Override
+    public boolean hasAccess(Resource resource) {
+        UserIndex index = users.get(fold(resource.getUsername()));
+        if(index == null)
+            return false;
+        String pattern = accessTypePattern(resource);
+        boolean isDir = Files.isDirectory(resource.getPath());
+        for(Row row : index.rows(pathOf(resource))){
+            if(row.isDir == isDir && row.accessType.toUpperCase().contains(pattern))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void addAccess(Resource resource) throws Exception {
+        delegate.addAccess(resource);
+        index(resource);
+    }
+
+    @Override
+    public void addAccessBatch(List<Resource> resources) throws Exception {
+        delegate.addAccessBatch(resources);
+        for(Resource resource : resources)
+            index(resource);
+    }
+
+    private void index(Resource resource){
+        users.computeIfAbsent(fold(resource.getUsername()), u -> new UserIndex())
+                .add(pathOf(resource), Files.isDirectory(resource.getPath()), accessTypeString(resource));
+    }
+
+    @Override
+    public void deleteAccess(Resource resource) throws Exception {
+        delegate.deleteAccess(resource);
+        //Database deletes the path for every user
+        String path = pathOf(resource);
+        boolean isDir = Files.isDirectory(resource.getPath());
+        for(UserIndex index : users.values())
+            index.remove(path, isDir);
+    }
+
+    @Override
+    public List<Resource> getUserAccess(String name, Map<String, String> params) {
+        List<Resource> list = new ArrayList<>();
+        forEachUserAccess(name, params, list::add);
+        return list;
+    }
+
+    @Override
+    public void forEachUserAccess(String name, Map<String, String> params, Consumer<? super Resource> action) {
+        forEachUserAccess(name, params, null, action);
+    }
+
+    @Override
+    public void forEachUserAccess(String name, Map<String, String> params, Page page,
+                                  Consumer<? super Resource> action) {
+        //Index is grouped by directory, a partial name prefix still needs the LIKE query
+        if(!SUPPORTED_PARAMS.containsAll(params.keySet())
+                || (params.containsKey("path") && !params.get("path").endsWith("/"))){
+            delegate.forEachUserAccess(name, params, page, action);
+            return;
+        }
+
+        UserIndex index = users.get(fold(name));
+        if(index == null)
+            return;
+
+        String[] requiredTypes = params.containsKey("access_type")
+                ? params.get("access_type").toUpperCase().split(",") : new String[0];
+        String isDirParam = params.get("is_dir");
+        Boolean requiredDir = isDirParam == null ? null
+                : isDirParam.equals("1") || isDirParam.equalsIgnoreCase("true");
+        String parent = params.get("path");
+
+        if(page == null){
+            Collection<ConcurrentNavigableMap<String, List<Row>>> directories = parent != null
+                    ? Collections.singletonList(index.children(parent))
+                    : index.byParent.values();
+            for(Map<String, List<Row>> children : directories){
+                for(Map.Entry<String, List<Row>> entry : children.entrySet()){
+                    for(Row row : entry.getValue()){
+                        if(row.matches(requiredTypes, requiredDir))
+                            action.accept(new Resource(Paths.get(entry.getKey()), name, row.isDir,
+                                    row.accessTypes()));
+                    }
+                }
+            }
+            return;
+        }
+
+        int rowsLeft = page.getLimit() + 1;
+        if(parent != null && page.getSort() != Page.Sort.DIRS_FIRST){
+            //Children are already sorted by path, read them from the cursor on and only as far as needed
+            boolean descending = page.getSort() == Page.Sort.PATH_DESC;
+            NavigableMap<String, List<Row>> children = index.children(parent);
+            if(page.hasCursor())
+                children = descending ? children.headMap(page.getAfterPath(), true)
+                        : children.tailMap(page.getAfterPath(), true);
+            if(descending)
+                children = children.descendingMap();
+            for(Map.Entry<String, List<Row>> entry : children.entrySet()){
+                for(Row row : inPageOrder(entry.getKey(), entry.getValue(), page)){
+                    if(row.matches(requiredTypes, requiredDir) && page.isAfterCursor(entry.getKey(), row.isDir)){
+                        action.accept(new Resource(Paths.get(entry.getKey()), name, row.isDir, row.accessTypes()));
+                        if(--rowsLeft == 0)
+                            return;
+                    }
+                }
+            }
+            return;
+        }
+
+        //Any other order: keep the first limit + 1 rows after the cursor in a heap, worst first
+        Comparator<Map.Entry<String, Row>> order = (a, b)
+                -> page.compare(a.getKey(), a.getValue().isDir, b.getKey(), b.getValue().isDir);
+        PriorityQueue<Map.Entry<String, Row>> firstRows = new PriorityQueue<>(order.reversed());
+        Collection<ConcurrentNavigableMap<String, List<Row>>> directories = parent != null
+                ? Collections.singletonList(index.children(parent))
+                : index.byParent.values();
+        for(Map<String, List<Row>> children : directories){
+            for(Map.Entry<String, List<Row>> entry : children.entrySet()){
+                for(Row row : entry.getValue()){
+                    if(row.matches(requiredTypes, requiredDir) && page.isAfterCursor(entry.getKey(), row.isDir)){
+                        firstRows.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), row));
+                        if(firstRows.size() > rowsLeft)
+                            firstRows.poll();
+                    }
+                }
+            }
+        }
+        List<Map.Entry<String, Row>> rows = new ArrayList<>(firstRows);
+        rows.sort(order);
+        for(Map.Entry<String, Row> row : rows)
+            action.accept(new Resource(Paths.get(row.getKey()), name, row.getValue().isDir,
+                    row.getValue().accessTypes()));
+    }
+
+    private static List<Row> inPageOrder(String path, List<Row> rows, Page page){
+        if(rows.size() < 2)
+            return rows;
+        List<Row> sorted = new ArrayList<>(rows);
+        sorted.sort((a, b) -> page.compare(path, a.isDir, path, b.isDir));
+        return sorted;
+    }
+
+    private static final class Row {
+        private final boolean isDir;
+        private final String accessType;
+
+        Row(boolean isDir, String accessType) {
+            this.isDir = isDir;
+            this.accessType = accessType;
+        }
+
+        boolean matches(String[] requiredTypes, Boolean requiredDir){
+            if(requiredDir != null && requiredDir != isDir)
+                return false;
+            String upper = accessType.toUpperCase();
+            for(String type : requiredTypes){
+                if(!upper.contains(type))
+                    return false;
+            }
+            return true;
+        }
+
+        AccessType[] accessTypes(){
+            String[] accessTypesStr = accessType.split(",");
+            AccessType[] accessTypes = new AccessType[accessTypesStr.length];
+            for (int i = 0; i < accessTypes.length; i++)
+                accessTypes[i] = AccessType.valueOf(accessTypesStr[i]);
+            return accessTypes;
+        }
+    }
+
+    /**
+     * Grants of one user: parent directory ("resource/dir/") to its children sorted by path,
+     * both ignoring case. Row lists are immutable and replaced on every change.
+     */
+    private static final class UserIndex {
+        private final ConcurrentMap<String, ConcurrentNavigableMap<String, List<Row>>> byParent
+                = new ConcurrentHashMap<>();
+
+        ConcurrentNavigableMap<String, List<Row>> children(String parent){
+            ConcurrentNavigableMap<String, List<Row>> children = byParent.get(fold(parent));
+            return children == null ? new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER) : children;
+        }
+
+        List<Row> rows(String path){
+            List<Row> rows = children(parentOf(path)).get(path);
+            return rows == null ? Collections.emptyList() : rows;
+        }
+
+        void add(String path, boolean isDir, String accessType){
+            Row row = new Row(isDir, accessType);
+            byParent.computeIfAbsent(fold(parentOf(path)),
+                    p -> new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER))
+                    .merge(path, Collections.singletonList(row), (old, added) -> {
+                        List<Row> rows = new ArrayList<>(old);
+                        rows.addAll(added);
+                        return Collections.unmodifiableList(rows);
+                    });
+        }
+
+        void remove(String path, boolean isDir){
+            ConcurrentNavigableMap<String, List<Row>> children = byParent.get(fold(parentOf(path)));
+            if(children == null)
+                return;
+            children.computeIfPresent(path, (p, old) -> {
+                List<Row> rows = new ArrayList<>();
+                for(Row row : old){
+                    if(row.isDir != isDir)
+                        rows.add(row);
+                }
+                return rows.isEmpty() ? null : Collections.unmodifiableList(rows);
+            });
+        }
+    }
+}
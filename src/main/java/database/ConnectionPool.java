@@ -0,0 +1,306 @@
+package database;
+
+import utils.FineLogger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed-size JDBC connection pool. Borrowed connections are proxies whose {@code close()}
+ * hands the physical connection back, so callers use plain try-with-resources.
+ * Idle connections are validated before reuse and leases held longer than the leak
+ * threshold are reported together with the stack trace of the borrower.
+ */
+public final class ConnectionPool implements AutoCloseable {
+    private static final Logger logger = FineLogger.getLogger(ConnectionPool.class.getName());
+    private static final long VALIDATION_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long HOUSEKEEPING_PERIOD = 10;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long leakThresholdMillis;
+
+    private final Semaphore permits;
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * Opens the first connection eagerly, so a wrong URL or credentials fail at startup.
+     * @param acquireTimeoutMillis how long a caller waits for a free connection
+     * @param leakThresholdMillis lease time after which a connection is reported as leaked, 0 disables
+     *                            leak detection and the stack trace capture it needs
+     */
+    public ConnectionPool(String url, String username, String password, int maxSize,
+                          long acquireTimeoutMillis, long leakThresholdMillis) throws SQLException {
+        if(maxSize < 1)
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        idle.add(newConnection());
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeeping,
+                HOUSEKEEPING_PERIOD, HOUSEKEEPING_PERIOD, TimeUnit.SECONDS);
+    }
+
+    private PooledConnection newConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, username, password);
+        created.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+    /**
+     * Borrows a connection, waiting at most the acquire timeout.
+     * @throws SQLTimeoutException if every connection stays in use
+     */
+    public Connection getConnection() throws SQLException {
+        if(closed)
+            throw new SQLException("Connection pool is closed");
+        acquired.incrementAndGet();
+        if(!permits.tryAcquire()){
+            long start = System.nanoTime();
+            waits.incrementAndGet();
+            try {
+                boolean granted = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+                waitNanos.addAndGet(System.nanoTime() - start);
+                if(!granted){
+                    timeouts.incrementAndGet();
+                    throw new SQLTimeoutException("No free connection after " + acquireTimeoutMillis + " ms, "
+                            + this);
+                }
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a connection", e);
+            }
+        }
+
+        try {
+            PooledConnection pooled = takeValidConnection();
+            Lease lease = new Lease(pooled);
+            leases.add(lease);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, lease);
+        }catch (SQLException | RuntimeException e){
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeValidConnection() throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null){
+            if(System.nanoTime() - pooled.lastUsed < VALIDATION_INTERVAL || isValid(pooled.connection))
+                return pooled;
+            discard(pooled);
+        }
+        return newConnection();
+    }
+
+    private static boolean isValid(Connection connection){
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        }catch (SQLException e){
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooled){
+        discarded.incrementAndGet();
+        try {
+            pooled.connection.close();
+        }catch (SQLException e){
+            logger.log(Level.CONFIG, "Error closing connection", e);
+        }
+    }
+
+    private void release(Lease lease){
+        leases.remove(lease);
+        PooledConnection pooled = lease.pooled;
+        try {
+            boolean reusable = !closed && !lease.broken && !pooled.connection.isClosed();
+            if(reusable && !pooled.connection.getAutoCommit()){
+                //Borrower left a transaction open
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+            if(reusable){
+                pooled.lastUsed = System.nanoTime();
+                idle.addFirst(pooled);
+            }else {
+                discard(pooled);
+            }
+        }catch (SQLException e){
+            logger.log(Level.CONFIG, "Discarding connection after failed reset", e);
+            discard(pooled);
+        }finally {
+            permits.release();
+        }
+    }
+
+    private void housekeeping(){
+        long now = System.nanoTime();
+        for(Lease lease : leases){
+            long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - lease.borrowedAt);
+            if(leakThresholdMillis > 0 && heldMillis > leakThresholdMillis && !lease.reported){
+                lease.reported = true;
+                leaks.incrementAndGet();
+                logger.log(Level.WARNING, "Connection held for " + heldMillis + " ms, possible leak", lease.borrower);
+            }
+        }
+        logger.fine(toString());
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveConnections(){
+        return leases.size();
+    }
+
+    public int getIdleConnections(){
+        return idle.size();
+    }
+
+    /**
+     * @return callers currently blocked waiting for a connection
+     */
+    public int getWaitingThreads(){
+        return permits.getQueueLength();
+    }
+
+    public long getAcquireCount(){
+        return acquired.get();
+    }
+
+    public long getWaitCount(){
+        return waits.get();
+    }
+
+    public long getWaitTimeMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getTimeoutCount(){
+        return timeouts.get();
+    }
+
+    public long getLeakCount(){
+        return leaks.get();
+    }
+
+    public long getCreatedCount(){
+        return created.get();
+    }
+
+    public long getDiscardedCount(){
+        return discarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[active=" + getActiveConnections() + ", idle=" + getIdleConnections()
+                + ", max=" + maxSize + ", waiting=" + getWaitingThreads() + ", acquired=" + getAcquireCount()
+                + ", waits=" + getWaitCount() + ", waitMs=" + getWaitTimeMillis() + ", timeouts=" + getTimeoutCount()
+                + ", leaks=" + getLeakCount() + ", created=" + getCreatedCount() + ", discarded=" + getDiscardedCount()
+                + "]";
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null)
+            discard(pooled);
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private volatile long lastUsed = System.nanoTime();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final long borrowedAt = System.nanoTime();
+        private final Exception borrower
+                = leakThresholdMillis > 0 ? new Exception("Connection borrowed here") : null;
+        private volatile boolean reported;
+        private volatile boolean broken;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()){
+                case "close":
+                    if(released.compareAndSet(false, true))
+                        release(this);
+                    return null;
+                case "isClosed":
+                    return released.get() || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooled.connection;
+                default:
+                    if(released.get())
+                        throw new SQLException("Connection is already returned to the pool");
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            }catch (InvocationTargetException e){
+                Throwable cause = e.getCause();
+                //SQLState class 08 is a connection exception, the session is gone
+                if(cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                        && ((SQLException) cause).getSQLState().startsWith("08"))
+                    broken = true;
+                throw cause;
+            }
+        }
+    }
+}
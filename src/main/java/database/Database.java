@@ -2,6 +2,7 @@ package database;
 
 import resource.AccessType;
 import resource.Access;
+import resource.Page;
 import resource.Resource;
 import resource.ResourceServ;
 import utils.FineLogger;
@@ -13,11 +14,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Database implements Access<String, Resource> {
-    private Connection connection;
+    private final ConnectionPool pool;
     private static final Logger logger = FineLogger.getLogger(Database.class.getName(), "logs/databaseLog.txt");
     private static final String usernameAccess = "select * from user_access" +
             " WHERE username = ? and acc_path = ? and is_dir = ? and access_type like ?";
@@ -30,19 +32,22 @@ public class Database implements Access<String, Resource> {
 
     private static final String deleteAccess = "delete from accesses " +
             " where acc_path = ? and is_dir = ?";
+    //Rows read per query of a whole listing
+    private static final int ROW_BATCH = 500;
 
 
 
-    public Database(Connection connection) {
-        Objects.requireNonNull(connection);
-        this.connection = connection;
+    public Database(ConnectionPool pool) {
+        Objects.requireNonNull(pool);
+        this.pool = pool;
     }
 
 
     @Override
     public boolean hasAccess(Resource resource){
         try {
-            try (PreparedStatement preparedStatement = connection.prepareStatement(usernameAccess)){
+            try (Connection connection = pool.getConnection();
+                 PreparedStatement preparedStatement = connection.prepareStatement(usernameAccess)){
                 String unixLikePath = ResourceServ.unixLikePath(resource.getPath().toString());
                 preparedStatement.setString(1, resource.getUsername());
                 preparedStatement.setString(2, unixLikePath);
@@ -50,7 +55,7 @@ public class Database implements Access<String, Resource> {
 
                 preparedStatement.setString(4, Arrays.toString(resource.getAccessTypes())
                         .replaceAll("\\[|\\]", "%"));
-                logger.finer(preparedStatement.toString());
+                logger.finer(preparedStatement::toString);
                 ResultSet result = preparedStatement.executeQuery();
                 return result.first();
             }
@@ -64,7 +69,8 @@ public class Database implements Access<String, Resource> {
 
     @Override
     public void addAccess(Resource resource) throws Exception {
-            try (PreparedStatement preparedStatement = connection.prepareStatement(addAccess)) {
+            try (Connection connection = pool.getConnection();
+                 PreparedStatement preparedStatement = connection.prepareStatement(addAccess)) {
                 preparedStatement.setString(1, ResourceServ.unixLikePath(resource.getPath().toString()));
                 preparedStatement.setBoolean(2, Files.isDirectory(resource.getPath()));
                 preparedStatement.setString(3, resource.getUsername());
@@ -72,26 +78,62 @@ public class Database implements Access<String, Resource> {
                 String access_type = Arrays.toString(resource.getAccessTypes())
                         .replaceAll("\\[|\\]| ", "");
                 preparedStatement.setString(4, access_type);
-                logger.finer(preparedStatement.toString());
+                logger.finer(preparedStatement::toString);
                 preparedStatement.execute();
             }
     }
 
+    /**
+     * Inserts all rows as one JDBC batch inside a single transaction.
+     */
+    @Override
+    public void addAccessBatch(List<Resource> resources) throws Exception {
+        if(resources.isEmpty())
+            return;
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(addAccess)) {
+                for (Resource resource : resources) {
+                    preparedStatement.setString(1, ResourceServ.unixLikePath(resource.getPath().toString()));
+                    preparedStatement.setBoolean(2, Files.isDirectory(resource.getPath()));
+                    preparedStatement.setString(3, resource.getUsername());
+                    preparedStatement.setString(4, Arrays.toString(resource.getAccessTypes())
+                            .replaceAll("\\[|\\]| ", ""));
+                    preparedStatement.addBatch();
+                }
+                logger.finer(() -> "Adding " + resources.size() + " accesses in batch");
+                preparedStatement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                //Surface duplicate rows the same way a single insert does
+                for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                    if (cause instanceof SQLIntegrityConstraintViolationException)
+                        throw (SQLIntegrityConstraintViolationException) cause;
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
     @Override
     public void deleteAccess(Resource resource) throws Exception{
 
-        try (PreparedStatement preparedStatement = connection.prepareStatement(deleteAccess)){
+        try (Connection connection = pool.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(deleteAccess)){
             String unixLikePath = ResourceServ.unixLikePath(resource.getPath().toString());
             preparedStatement.setString(1,unixLikePath);
             preparedStatement.setBoolean(2, Files.isDirectory(resource.getPath()));
-            logger.finer(preparedStatement.toString());
+            logger.finer(preparedStatement::toString);
             preparedStatement.execute();
         }
 
     }
 
     private static String modifyWithParams(Map<String, String> params, String query){
-        System.out.println(params);
+        logger.finest(params::toString);
         for(String s : params.keySet()){
             switch (s){
                 case "access_type":
@@ -114,34 +156,112 @@ public class Database implements Access<String, Resource> {
         return  query;
     }
 
-    //refactor....
     @Override
     public List<Resource> getUserAccess(String name, Map<String, String> params){
         List<Resource> list = new ArrayList<>();
+        forEachUserAccess(name, params, list::add);
+        return list;
+    }
+
+    /**
+     * Reads the rows {@link #ROW_BATCH} at a time in path order, each batch with its own keyset query,
+     * so a listing of any size holds one batch in memory and no connection while {@code action} runs.
+     */
+    @Override
+    public void forEachUserAccess(String name, Map<String, String> params, Consumer<? super Resource> action){
+        Page batch = new Page(ROW_BATCH, Page.Sort.PATH, null, false);
+        while (true){
+            List<Resource> rows = readPage(name, params, batch);
+            int handed = Math.min(rows.size(), ROW_BATCH);
+            rows.subList(0, handed).forEach(action);
+            if(rows.size() <= ROW_BATCH)
+                return;
+            Resource last = rows.get(handed - 1);
+            batch = new Page(ROW_BATCH, Page.Sort.PATH, ResourceServ.unixLikePath(last.getPath().toString()),
+                    last.isDir());
+        }
+    }
+
+    /**
+     * Keyset condition after the cursor, order and row limit of a page.
+     */
+    private static String pageClause(Page page){
+        StringBuilder sb = new StringBuilder();
+        switch (page.getSort()){
+            case PATH_DESC:
+                if(page.hasCursor())
+                    sb.append(" and (acc_path < ? or (acc_path = ? and is_dir < ?))");
+                sb.append(" order by acc_path desc, is_dir desc");
+                break;
+            case DIRS_FIRST:
+                if(page.hasCursor())
+                    sb.append(" and (is_dir < ? or (is_dir = ? and acc_path > ?))");
+                sb.append(" order by is_dir desc, acc_path");
+                break;
+            default:
+                if(page.hasCursor())
+                    sb.append(" and (acc_path > ? or (acc_path = ? and is_dir > ?))");
+                sb.append(" order by acc_path, is_dir");
+        }
+        return sb.append(" limit ?").toString();
+    }
+
+    private static void setPageParams(PreparedStatement preparedStatement, Page page) throws SQLException{
+        int index = 2;
+        if(page.hasCursor()){
+            if(page.getSort() == Page.Sort.DIRS_FIRST){
+                preparedStatement.setBoolean(index++, page.isAfterDir());
+                preparedStatement.setBoolean(index++, page.isAfterDir());
+                preparedStatement.setString(index++, page.getAfterPath());
+            }else {
+                preparedStatement.setString(index++, page.getAfterPath());
+                preparedStatement.setString(index++, page.getAfterPath());
+                preparedStatement.setBoolean(index++, page.isAfterDir());
+            }
+        }
+        preparedStatement.setInt(index, page.getLimit() + 1);
+    }
+
+    /**
+     * Reads the page before handing its rows to {@code action}, so the pooled connection is back
+     * before the caller stats files or writes to a slow client.
+     * A page is cut by the query itself, only {@code limit + 1} rows leave the database.
+     */
+    @Override
+    public void forEachUserAccess(String name, Map<String, String> params, Page page,
+                                  Consumer<? super Resource> action){
+        if(page == null)
+            forEachUserAccess(name, params, action);
+        else
+            readPage(name, params, page).forEach(action);
+    }
+
+    private List<Resource> readPage(String name, Map<String, String> params, Page page){
+        List<Resource> rows = new ArrayList<>();
         try{
-            String userAccessQuery = modifyWithParams(params, userAccess);
+            String userAccessQuery = modifyWithParams(params, userAccess) + pageClause(page);
 
-            try(PreparedStatement preparedStatement = connection.prepareStatement(userAccessQuery)){
+            try(Connection connection = pool.getConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement(userAccessQuery,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)){
                 preparedStatement.setString(1, name);
-                System.out.println(preparedStatement);
-                ResultSet resultSet = preparedStatement.executeQuery();
-                logger.finer(preparedStatement.toString());
-                while (resultSet.next()){
-                    Path path = Paths.get(resultSet.getString(1));
-                    boolean isDir = resultSet.getBoolean(2);
-                    String[] accessTypesStr = resultSet.getString(3).split(",");
-                    AccessType[] accessTypes = new AccessType[accessTypesStr.length];
-                    for (int i = 0; i < accessTypes.length; i++) {
-                        accessTypes[i] = AccessType.valueOf(accessTypesStr[i]);
+                setPageParams(preparedStatement, page);
+                logger.finer(preparedStatement::toString);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        Path path = Paths.get(resultSet.getString(1));
+                        String[] accessTypesStr = resultSet.getString(3).split(",");
+                        AccessType[] accessTypes = new AccessType[accessTypesStr.length];
+                        for (int i = 0; i < accessTypes.length; i++) {
+                            accessTypes[i] = AccessType.valueOf(accessTypesStr[i]);
+                        }
+                        rows.add(new Resource(path, name, resultSet.getBoolean(2), accessTypes));
                     }
-                    Resource resource = new Resource(path, name, accessTypes);
-                    list.add(resource);
                 }
-
             }
         }catch (SQLException e){
             logger.log(Level.CONFIG, "Sqlex", e);
         }
-        return list;
+        return rows;
     }
 }
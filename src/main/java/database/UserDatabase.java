@@ -0,0 +1,38 @@
+package database;
+
+import authorization.UserStore;
+import utils.FineLogger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Users from the {@code users(username, password_hash)} table.
+ */
+public class UserDatabase implements UserStore {
+    private static final Logger logger = FineLogger.getLogger(UserDatabase.class.getName());
+    private static final String passwordHash = "select password_hash from users where username = ?";
+
+    private final ConnectionPool pool;
+
+    public UserDatabase(ConnectionPool pool) {
+        Objects.requireNonNull(pool);
+        this.pool = pool;
+    }
+
+    @Override
+    public String passwordHash(String username) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(passwordHash)){
+            preparedStatement.setString(1, username);
+            logger.finer(preparedStatement::toString);
+            try (ResultSet result = preparedStatement.executeQuery()){
+                return result.next() ? result.getString(1) : null;
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package resource;
 
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public interface Access<T, V> {
 
@@ -9,4 +10,28 @@ public interface Access<T, V> {
     void addAccess(V access) throws Exception;
     void deleteAccess(V access) throws Exception;
     List<V> getUserAccess(T name, Map<String, String> params);
+
+    /**
+     * Adds all accesses, transactional implementations add all or none of them.
+     */
+    default void addAccessBatch(List<V> accesses) throws Exception{
+        for(V access : accesses)
+            addAccess(access);
+    }
+
+    /**
+     * Hands the user's accesses to {@code action} one at a time instead of returning a list.
+     */
+    default void forEachUserAccess(T name, Map<String, String> params, Consumer<? super V> action){
+        getUserAccess(name, params).forEach(action);
+    }
+
+    /**
+     * Same as {@link #forEachUserAccess(Object, Map, Consumer)} for one page. Implementations should
+     * start after the cursor and stop after {@code page.getLimit() + 1} rows, the extra row tells the
+     * caller there is a next page. The default can't seek and hands over every row.
+     */
+    default void forEachUserAccess(T name, Map<String, String> params, Page page, Consumer<? super V> action){
+        forEachUserAccess(name, params, action);
+    }
 }
@@ -0,0 +1,262 @@
+package resource;
+
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Caches {@link #hasAccess} decisions of another {@link Access} for a limited time.
+ * Entries are spread over segments by path, each segment is an LRU map with its own lock,
+ * so grants and deletes that go through this cache drop exactly the decisions for their path.
+ * Changes made to the backing store by anyone else become visible after the TTL.
+ */
+public class AccessCache implements Access<String, Resource> {
+    private static final int SEGMENTS = 16;
+
+    private final Access<String, Resource> delegate;
+    private final long ttlNanos;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of cached decisions
+     * @param ttlMillis how long a decision is trusted
+     */
+    public AccessCache(Access<String, Resource> delegate, int maxSize, long ttlMillis) {
+        Objects.requireNonNull(delegate);
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    private static String pathKey(Resource resource){
+        return ResourceServ.unixLikePath(resource.getPath().toString());
+    }
+
+    private Segment segmentFor(String path){
+        int hash = path.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    @Override
+    public boolean hasAccess(Resource resource) {
+        String path = pathKey(resource);
+        Key key = new Key(resource.getUsername(), path, Files.isDirectory(resource.getPath()),
+                Arrays.toString(resource.getAccessTypes()));
+        Segment segment = segmentFor(path);
+
+        long generation;
+        segment.lock.lock();
+        try {
+            Entry entry = segment.entries.get(key);
+            if(entry != null && System.nanoTime() - entry.loadedAt < ttlNanos){
+                hits.increment();
+                return entry.allowed;
+            }
+            generation = segment.generation;
+        }finally {
+            segment.lock.unlock();
+        }
+
+        misses.increment();
+        boolean allowed = delegate.hasAccess(resource);
+
+        segment.lock.lock();
+        try {
+            //A grant or delete raced with the lookup, its result may already be stale
+            if(segment.generation == generation)
+                segment.put(key, new Entry(allowed, System.nanoTime()));
+        }finally {
+            segment.lock.unlock();
+        }
+        return allowed;
+    }
+
+    @Override
+    public void addAccess(Resource resource) throws Exception {
+        try {
+            delegate.addAccess(resource);
+        }finally {
+            String user = resource.getUsername();
+            invalidate(pathKey(resource), key -> Objects.equals(key.username, user));
+        }
+    }
+
+    @Override
+    public void addAccessBatch(List<Resource> resources) throws Exception {
+        try {
+            delegate.addAccessBatch(resources);
+        }finally {
+            for(Resource resource : resources){
+                String user = resource.getUsername();
+                invalidate(pathKey(resource), key -> Objects.equals(key.username, user));
+            }
+        }
+    }
+
+    @Override
+    public void deleteAccess(Resource resource) throws Exception {
+        try {
+            delegate.deleteAccess(resource);
+        }finally {
+            //Rows of every user on the path are deleted
+            invalidate(pathKey(resource), key -> true);
+        }
+    }
+
+    @Override
+    public List<Resource> getUserAccess(String name, Map<String, String> params) {
+        return delegate.getUserAccess(name, params);
+    }
+
+    @Override
+    public void forEachUserAccess(String name, Map<String, String> params, Consumer<? super Resource> action) {
+        delegate.forEachUserAccess(name, params, action);
+    }
+
+    @Override
+    public void forEachUserAccess(String name, Map<String, String> params, Page page,
+                                  Consumer<? super Resource> action) {
+        delegate.forEachUserAccess(name, params, page, action);
+    }
+
+    private void invalidate(String path, Predicate<Key> filter){
+        Segment segment = segmentFor(path);
+        segment.lock.lock();
+        try {
+            segment.generation++;
+            Set<Key> keys = segment.byPath.get(path);
+            if(keys == null)
+                return;
+            for(Iterator<Key> iterator = keys.iterator(); iterator.hasNext(); ){
+                Key key = iterator.next();
+                if(filter.test(key)){
+                    iterator.remove();
+                    segment.entries.remove(key);
+                    invalidations.increment();
+                }
+            }
+            if(keys.isEmpty())
+                segment.byPath.remove(path);
+        }finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public long getHitCount(){
+        return hits.sum();
+    }
+
+    public long getMissCount(){
+        return misses.sum();
+    }
+
+    public long getEvictionCount(){
+        return evictions.sum();
+    }
+
+    public long getInvalidationCount(){
+        return invalidations.sum();
+    }
+
+    public int size(){
+        int size = 0;
+        for(Segment segment : segments){
+            segment.lock.lock();
+            try {
+                size += segment.entries.size();
+            }finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        long hit = getHitCount();
+        long total = hit + getMissCount();
+        return "AccessCache[size=" + size() + ", hits=" + hit + ", misses=" + getMissCount()
+                + ", hitRatio=" + (total == 0 ? 0 : hit * 100 / total) + "%, evictions=" + getEvictionCount()
+                + ", invalidations=" + getInvalidationCount() + "]";
+    }
+
+    private static final class Key {
+        private final String username;
+        private final String path;
+        private final boolean isDir;
+        private final String accessTypes;
+
+        Key(String username, String path, boolean isDir, String accessTypes) {
+            this.username = username;
+            this.path = path;
+            this.isDir = isDir;
+            this.accessTypes = accessTypes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return isDir == key.isDir && Objects.equals(username, key.username)
+                    && path.equals(key.path) && accessTypes.equals(key.accessTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(username, path, isDir, accessTypes);
+        }
+    }
+
+    private static final class Entry {
+        private final boolean allowed;
+        private final long loadedAt;
+
+        Entry(boolean allowed, long loadedAt) {
+            this.allowed = allowed;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Set<Key>> byPath = new HashMap<>();
+        private final LinkedHashMap<Key, Entry> entries;
+        private long generation;
+
+        Segment(int maxSize) {
+            entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    if(size() <= maxSize)
+                        return false;
+                    unindex(eldest.getKey());
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+
+        void put(Key key, Entry entry){
+            if(entries.put(key, entry) == null)
+                byPath.computeIfAbsent(key.path, p -> new HashSet<>()).add(key);
+        }
+
+        void unindex(Key key){
+            Set<Key> keys = byPath.get(key.path);
+            if(keys != null && keys.remove(key) && keys.isEmpty())
+                byPath.remove(key.path);
+        }
+    }
+}
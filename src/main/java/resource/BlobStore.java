@@ -0,0 +1,150 @@
+package resource;
+
+import utils.FineLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed storage for uploads. Each distinct content is kept once as a blob named
+ * after its SHA-256, and resource paths are hard links to their blob, so downloads, ranges
+ * and listings read them like any other file. A blob's link count is its reference count:
+ * it goes up when an upload is linked in and down when a resource is deleted or overwritten,
+ * and a blob only the store still links to is removed. The digest is also kept in a user
+ * extended attribute of the blob, shared by every link, and serves as a strong ETag.
+ * The store has to be on the same file system as the resources.
+ */
+public class BlobStore {
+    private static final Logger logger = FineLogger.getLogger(BlobStore.class.getName());
+    private static final String DIGEST_ATTRIBUTE = "sha256";
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path directory;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public BlobStore(Path directory) {
+        this.directory = directory;
+        for(int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    public static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path blob(String digest){
+        return directory.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private ReentrantLock lockFor(String digest){
+        return locks[Math.floorMod(digest.hashCode(), locks.length)];
+    }
+
+    /**
+     * @return hex digest of a stored resource, null if it is not a blob
+     */
+    public String digestOf(Path path){
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if(view == null)
+            return null;
+        try {
+            ByteBuffer value = ByteBuffer.allocate(64);
+            view.read(DIGEST_ATTRIBUTE, value);
+            value.flip();
+            return StandardCharsets.US_ASCII.decode(value).toString();
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * Stores the complete upload {@code temp} under its digest, or drops it if that content is
+     * already stored, and atomically puts a link to the blob at {@code path}.
+     */
+    public void put(Path temp, String digest, Path path) throws IOException {
+        String previous = digestOf(path);
+        Path blob = blob(digest);
+        Path link = path.toAbsolutePath().resolveSibling(
+                ".link-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        ReentrantLock lock = lockFor(digest);
+        lock.lock();
+        try {
+            if(Files.exists(blob)){
+                Files.delete(temp);
+                logger.fine(() -> "Deduplicated " + path + " to " + digest);
+            }else {
+                Files.getFileAttributeView(temp, UserDefinedFileAttributeView.class)
+                        .write(DIGEST_ATTRIBUTE, StandardCharsets.US_ASCII.encode(digest));
+                Files.createDirectories(blob.getParent());
+                Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.createLink(link, blob);
+            try {
+                Files.move(link, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }finally {
+                Files.deleteIfExists(link);
+            }
+        }finally {
+            lock.unlock();
+        }
+        if(previous != null && !previous.equals(digest))
+            release(previous);
+    }
+
+    /**
+     * Deletes a resource and its blob if nothing else links to it.
+     */
+    public void delete(Path path) throws IOException {
+        String digest = digestOf(path);
+        Files.delete(path);
+        if(digest != null)
+            release(digest);
+    }
+
+    private void release(String digest) throws IOException {
+        Path blob = blob(digest);
+        ReentrantLock lock = lockFor(digest);
+        lock.lock();
+        try {
+            if(Files.exists(blob) && (Integer) Files.getAttribute(blob, "unix:nlink") <= 1){
+                Files.delete(blob);
+                logger.fine(() -> "Removed unreferenced blob " + digest);
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes blobs left unreferenced, e.g. by a crash between storing and linking.
+     */
+    public void sweep(){
+        if(!Files.isDirectory(directory))
+            return;
+        try (Stream<Path> blobs = Files.walk(directory, 2)){
+            blobs.filter(Files::isRegularFile).forEach(blob -> {
+                try {
+                    release(blob.getFileName().toString());
+                }catch (IOException e){
+                    logger.log(Level.WARNING, "Can't check blob " + blob, e);
+                }
+            });
+        }catch (IOException e){
+            logger.log(Level.WARNING, "Can't sweep blobs in " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package resource;
+
+import utils.FineLogger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static utils.ServerConstants.KEEP_ALIVE_TIMEOUT;
+
+/**
+ * Selector thread owning a set of non-blocking connections. Everything that touches
+ * selection keys runs here; other threads hand work over through {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private static final Logger logger = FineLogger.getLogger(EventLoop.class.getName());
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    EventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    void execute(Runnable task){
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks(){
+        Runnable task;
+        while ((task = tasks.poll()) != null){
+            try {
+                task.run();
+            }catch (RuntimeException e){
+                logger.log(Level.SEVERE, "RUNTIME EXCEPTION", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys(){
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()){
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if(key.isValid() && key.isReadable())
+                    connection.onReadable();
+                if(key.isValid() && key.isWritable())
+                    connection.onWritable();
+            }catch (IOException e){
+                logger.log(Level.FINE, e, () -> "Error talking to " + connection.getRemoteAddress());
+                connection.close();
+            }
+        }
+    }
+
+    private void closeIdleConnections(){
+        long now = System.currentTimeMillis();
+        if(now - lastIdleCheck < IDLE_CHECK_INTERVAL)
+            return;
+        lastIdleCheck = now;
+        for(SelectionKey key : selector.keys()){
+            NioConnection connection = (NioConnection) key.attachment();
+            if(connection != null && connection.isIdle(now, KEEP_ALIVE_TIMEOUT)){
+                logger.fine(() -> "Idle timeout for client " + connection.getRemoteAddress());
+                connection.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()){
+            try {
+                selector.select(IDLE_CHECK_INTERVAL);
+                runTasks();
+                processSelectedKeys();
+                closeIdleConnections();
+            }catch (IOException e){
+                logger.log(Level.SEVERE, "Selector failure", e);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package resource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Zero-copy route from a file to the client socket, used by {@link ResourceServ}
+ * when the connection exposes a channel.
+ */
+interface FileTransfer {
+
+    /**
+     * Sends {@code count} bytes of {@code file} starting at {@code position}
+     * after everything already flushed to the client.
+     */
+    void transfer(Path file, long position, long count) throws IOException;
+
+    /**
+     * Sends the remaining bytes of {@code buffer} after everything already flushed to the client.
+     * The buffer is not modified by anyone else until it is sent.
+     */
+    void send(ByteBuffer buffer) throws IOException;
+}
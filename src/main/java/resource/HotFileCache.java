@@ -0,0 +1,256 @@
+package resource;
+
+import utils.FineLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the contents of small, frequently requested files in direct buffers so they are
+ * sent without opening the file. Entries are valid for one version of a file, its path,
+ * mtime and size, and are dropped by uploads and deletes.
+ * Memory is bounded by a byte budget. A new file only replaces a cached one if it was
+ * requested more often recently (TinyLFU admission), so a long tail of one-off requests
+ * can't push the hot files out. Hits only read a concurrent map, admission and eviction
+ * happen under a lock on misses.
+ */
+public class HotFileCache {
+    private static final Logger logger = FineLogger.getLogger(HotFileCache.class.getName());
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    //Eviction candidates in the order they are sampled, entries dropped from the map are skipped
+    private final ArrayDeque<Entry> evictionOrder = new ArrayDeque<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final FrequencySketch frequencies;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry {
+        final Path key;
+        final ByteBuffer content;
+        final long lastModified;
+
+        Entry(Path key, ByteBuffer content, long lastModified) {
+            this.key = key;
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+        boolean isVersion(long lastModified, long size){
+            return this.lastModified == lastModified && content.capacity() == size;
+        }
+    }
+
+    /**
+     * Approximate recent request counts: four 4-bit counters per file in a count-min sketch,
+     * all halved after every {@code 10 * width} requests so old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private final int[] counters;
+        private final int mask;
+        private final int resetAfter;
+        private final AtomicLong requests = new AtomicLong();
+
+        FrequencySketch(int width){
+            int size = Integer.highestOneBit(Math.max(64, width) * 2 - 1);
+            counters = new int[size];
+            mask = size - 1;
+            resetAfter = size * 10;
+        }
+
+        private static int spread(int hash, int i){
+            hash *= 0x9E3779B9 + (i << 1);
+            return hash ^ (hash >>> 16);
+        }
+
+        void increment(Object key){
+            int hash = key.hashCode();
+            //Lost updates between threads only make the counts less exact
+            for(int i = 0; i < 4; i++){
+                int index = spread(hash, i) & mask;
+                if(counters[index] < MAX_COUNT)
+                    counters[index]++;
+            }
+            if(requests.incrementAndGet() % resetAfter == 0)
+                halve();
+        }
+
+        int frequency(Object key){
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for(int i = 0; i < 4; i++)
+                frequency = Math.min(frequency, counters[spread(hash, i) & mask]);
+            return frequency;
+        }
+
+        private synchronized void halve(){
+            for(int i = 0; i < counters.length; i++)
+                counters[i] >>>= 1;
+        }
+    }
+
+    /**
+     * @param maxBytes total size of cached contents
+     * @param maxFileSize larger files are never cached
+     */
+    public HotFileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(Math.min(maxFileSize, maxBytes), Integer.MAX_VALUE);
+        this.frequencies = new FrequencySketch((int) Math.min(1 << 20, Math.max(1, maxBytes / 1024)));
+    }
+
+    private static Path key(Path file){
+        return file.normalize();
+    }
+
+    /**
+     * @return true if this version of the file is cached
+     */
+    public boolean contains(Path file, long lastModified, long size){
+        Entry entry = entries.get(key(file));
+        return entry != null && entry.isVersion(lastModified, size);
+    }
+
+    /**
+     * Contents of this version of the file, read into the cache now if it is small and hot enough.
+     * @return a buffer of its own over the contents, or null if the file has to be read from disk
+     */
+    public ByteBuffer get(Path file, long lastModified, long size){
+        Path key = key(file);
+        frequencies.increment(key);
+        Entry entry = entries.get(key);
+        if(entry != null){
+            if(entry.isVersion(lastModified, size)){
+                hits.increment();
+                return entry.content.duplicate();
+            }
+            remove(key, entry);
+        }
+        misses.increment();
+        if(size > maxFileSize || !admit(key, size))
+            return null;
+
+        //admit reserved the space, it is given back unless the contents end up in the map
+        ByteBuffer content = read(file, size);
+        if(content == null){
+            usedBytes.addAndGet(-size);
+            return null;
+        }
+        Entry loaded = new Entry(key, content.asReadOnlyBuffer(), lastModified);
+        evictionLock.lock();
+        try {
+            if(entries.putIfAbsent(key, loaded) != null){
+                usedBytes.addAndGet(-size);
+            }else {
+                evictionOrder.addLast(loaded);
+                //Invalidated entries pile up when nothing needs evicting
+                if(evictionOrder.size() > entries.size() * 2 + 64)
+                    evictionOrder.removeIf(e -> entries.get(e.key) != e);
+                logger.finer(() -> "Cached " + file + ", " + usedBytes.get() + " bytes in use");
+            }
+        }finally {
+            evictionLock.unlock();
+        }
+        return loaded.content.duplicate();
+    }
+
+    /**
+     * Evicts the least frequent of the next few entries in eviction order until {@code size} more
+     * bytes fit, as long as they are requested less often than the new file. Entries that stay
+     * go to the back, so every entry gets sampled in turn. The space is reserved before the lock
+     * is released, so concurrent misses can't all count on the same free bytes.
+     * @return false if the file is not worth the space, true if {@code size} bytes were reserved
+     */
+    private boolean admit(Path key, long size){
+        int frequency = frequencies.frequency(key);
+        Entry[] sample = new Entry[EVICTION_SAMPLE];
+        evictionLock.lock();
+        try {
+            while (usedBytes.get() + size > maxBytes){
+                int sampled = 0;
+                Entry victim = null;
+                int victimFrequency = Integer.MAX_VALUE;
+                while (sampled < sample.length && !evictionOrder.isEmpty()){
+                    Entry candidate = evictionOrder.pollFirst();
+                    if(entries.get(candidate.key) != candidate)
+                        continue;
+                    sample[sampled++] = candidate;
+                    int candidateFrequency = frequencies.frequency(candidate.key);
+                    if(candidateFrequency < victimFrequency){
+                        victim = candidate;
+                        victimFrequency = candidateFrequency;
+                    }
+                }
+                boolean evict = victim != null && victimFrequency < frequency;
+                for(int i = 0; i < sampled; i++){
+                    if(!evict || sample[i] != victim)
+                        evictionOrder.addLast(sample[i]);
+                }
+                if(!evict)
+                    return false;
+                remove(victim.key, victim);
+            }
+            usedBytes.addAndGet(size);
+            return true;
+        }finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static ByteBuffer read(Path file, long size){
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            if(channel.size() != size)
+                return null;
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining()){
+                if(channel.read(content) == -1)
+                    return null;
+            }
+            return content.flip();
+        }catch (IOException e){
+            logger.log(Level.CONFIG, "Can't cache " + file, e);
+            return null;
+        }
+    }
+
+    private void remove(Path key, Entry entry){
+        if(entries.remove(key, entry))
+            usedBytes.addAndGet(-entry.content.capacity());
+    }
+
+    /**
+     * Drops the cached contents of a file that is being replaced or deleted.
+     */
+    public void invalidate(Path file){
+        Entry entry = entries.remove(key(file));
+        if(entry != null)
+            usedBytes.addAndGet(-entry.content.capacity());
+    }
+
+    public long getUsedBytes(){
+        return usedBytes.get();
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+}
@@ -0,0 +1,456 @@
+package resource;
+
+import utils.FineLogger;
+import utils.Http;
+import utils.HttpParser;
+import utils.MeteredOutputStream;
+import utils.RequestHead;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static utils.ServerConstants.*;
+
+/**
+ * Non-blocking connection driven by an {@link EventLoop}. The loop reads into the inbound
+ * buffer until a whole request head is there and only then hands the request to a worker,
+ * so idle and slow clients hold no thread. The worker sees the connection as plain streams:
+ * reads block until the loop delivers more bytes, writes block while too much output is queued.
+ * File bodies are queued as regions and sent by the loop with {@link FileChannel#transferTo}.
+ */
+class NioConnection {
+    private static final Logger logger = FineLogger.getLogger(NioConnection.class.getName());
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long MAX_PENDING_OUTPUT = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ExecutorService workers;
+    private final ResourceServ handler;
+    private final InetAddress remoteAddress;
+    private SelectionKey key;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+    private final ByteBuffer inbound = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Deque<Object> outbound = new ArrayDeque<>();
+    private final RequestHead head = new RequestHead();
+    private long pendingOutput;
+    private boolean inputClosed;
+    private boolean closed;
+    private boolean readSuspended;
+
+    //Owned by the loop thread
+    private boolean dispatched;
+    private boolean closeAfterWrite;
+    private int served;
+    private int scanned;
+    private int scanNewLines;
+    private boolean scanContent;
+    private long lastActive = System.currentTimeMillis();
+
+    NioConnection(SocketChannel channel, EventLoop loop, ExecutorService workers, Access<String, Resource> access) {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.handler = new ResourceServ(channel.socket(), access, new FileTransfer() {
+            @Override
+            public void transfer(Path file, long position, long count) throws IOException {
+                transferFile(file, position, count);
+            }
+
+            @Override
+            public void send(ByteBuffer buffer) throws IOException {
+                enqueue(buffer, buffer.remaining());
+            }
+        });
+        this.remoteAddress = channel.socket().getInetAddress();
+    }
+
+    InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void register() throws IOException {
+        key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+    }
+
+    boolean isIdle(long now, long timeout){
+        return !dispatched && outbound.isEmpty() && now - lastActive > timeout;
+    }
+
+    void onReadable() throws IOException {
+        lastActive = System.currentTimeMillis();
+        lock.lock();
+        try {
+            int read = channel.read(inbound);
+            if(read == -1)
+                inputClosed = true;
+            else
+                ResourceServ.METRICS.getBytesIn().add(read);
+            if(!inbound.hasRemaining() || inputClosed) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                readSuspended = !inputClosed;
+            }
+            readable.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        if(!dispatched)
+            tryDispatch();
+    }
+
+    void onWritable() throws IOException {
+        lock.lock();
+        try {
+            while (!outbound.isEmpty()){
+                Object next = outbound.peek();
+                if(next instanceof FileRegion){
+                    FileRegion region = (FileRegion) next;
+                    if(!region.writeTo(channel))
+                        break;
+                    region.close();
+                    pendingOutput -= BUFFER_SIZE;
+                }else {
+                    ByteBuffer chunk = (ByteBuffer) next;
+                    pendingOutput -= channel.write(chunk);
+                    if (chunk.hasRemaining())
+                        break;
+                }
+                outbound.poll();
+            }
+            if(outbound.isEmpty())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            writable.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        lastActive = System.currentTimeMillis();
+        if(closeAfterWrite && !dispatched && outbound.isEmpty())
+            close();
+    }
+
+    /**
+     * Looks for the blank line ending a request head in the bytes read so far.
+     */
+    private boolean headComplete(){
+        int end = inbound.position();
+        for(; scanned < end; scanned++){
+            byte c = inbound.get(scanned);
+            if(c == '\n'){
+                if(++scanNewLines >= 2 && scanContent)
+                    return true;
+            }else if(c != '\r'){
+                scanNewLines = 0;
+                scanContent = true;
+            }
+        }
+        return false;
+    }
+
+    private void tryDispatch(){
+        boolean complete;
+        boolean full;
+        boolean eof;
+        lock.lock();
+        try {
+            complete = headComplete();
+            full = !inbound.hasRemaining();
+            eof = inputClosed;
+        }finally {
+            lock.unlock();
+        }
+
+        if(complete){
+            dispatched = true;
+            served++;
+            try {
+                workers.execute(this::serve);
+            }catch (RejectedExecutionException e){
+                logger.log(Level.WARNING, "Worker pool rejected request from " + remoteAddress, e);
+                close();
+            }
+        }else if(full){
+            logger.config(() -> "Request head too large from " + remoteAddress);
+            close();
+        }else if(eof){
+            closeAfterWrite = true;
+            if(outbound.isEmpty())
+                close();
+        }
+    }
+
+    private void serve(){
+        boolean keepAlive = false;
+        try {
+            MeteredOutputStream metered = new MeteredOutputStream(new ConnectionOutputStream(),
+                    ResourceServ.METRICS.getBytesOut());
+            OutputStream rawO = new BufferedOutputStream(metered, BUFFER_SIZE);
+            Writer writer = new OutputStreamWriter(rawO, StandardCharsets.UTF_8);
+            InputStream rawI = new ConnectionInputStream();
+            if(served >= MAX_KEEP_ALIVE_REQUESTS)
+                metered.closeAfterResponse();
+
+            try {
+                if(takeHead())
+                    keepAlive = handler.serveRequest(writer, rawO, rawI, head, metered);
+            }catch (HttpParser.HeadTooLargeException e){
+                logger.config(() -> e.getMessage() + " from " + remoteAddress);
+                writer.write(HEADER_TOO_LARGE);
+                Http.writeEmptyResponse(writer);
+            }
+            writer.flush();
+            rawO.flush();
+        }catch (SocketTimeoutException e){
+            logger.fine(() -> "Timeout for client " + remoteAddress);
+        }catch (RuntimeException e){
+            logger.log(Level.SEVERE, "RUNTIME EXCEPTION", e);
+        }catch (IOException e){
+            logger.log(Level.SEVERE, "Error talking to " + remoteAddress, e);
+        }
+        boolean reuse = keepAlive;
+        loop.execute(() -> requestDone(reuse));
+    }
+
+    /**
+     * Parses the request head straight out of the inbound buffer, the loop only dispatches
+     * once a whole head is there.
+     */
+    private boolean takeHead() throws HttpParser.HeadTooLargeException {
+        lock.lock();
+        try {
+            int consumed = HttpParser.parseHead(inbound.array(), inbound.arrayOffset(), inbound.position(), head);
+            if(consumed < 0)
+                return false;
+            inbound.flip();
+            inbound.position(consumed);
+            inbound.compact();
+            if(readSuspended)
+                loop.execute(this::resumeReadingLocked);
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private void requestDone(boolean keepAlive){
+        dispatched = false;
+        lastActive = System.currentTimeMillis();
+        if(closed)
+            return;
+        if(!keepAlive || served >= MAX_KEEP_ALIVE_REQUESTS){
+            closeAfterWrite = true;
+            if(outbound.isEmpty())
+                close();
+            return;
+        }
+        lock.lock();
+        try {
+            scanned = 0;
+            scanNewLines = 0;
+            scanContent = false;
+            resumeReading();
+        }finally {
+            lock.unlock();
+        }
+        //Next pipelined request may already be buffered
+        tryDispatch();
+    }
+
+    private void resumeReading(){
+        if(readSuspended && key.isValid() && inbound.hasRemaining()){
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            readSuspended = false;
+        }
+    }
+
+    void close(){
+        lock.lock();
+        try {
+            if(closed)
+                return;
+            closed = true;
+            for(Object entry : outbound){
+                if(entry instanceof FileRegion)
+                    ((FileRegion) entry).close();
+            }
+            outbound.clear();
+            readable.signalAll();
+            writable.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        if(key != null)
+            key.cancel();
+        try {
+            channel.close();
+            logger.fine(() -> "Closed connection for client " + remoteAddress);
+        }catch (IOException e){
+            logger.log(Level.WARNING, "Can't close socket for " + remoteAddress, e);
+        }
+    }
+
+    private int readInbound(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT);
+            while (inbound.position() == 0){
+                if(inputClosed || closed)
+                    return -1;
+                if(nanos <= 0)
+                    throw new SocketTimeoutException("Read timed out");
+                nanos = readable.awaitNanos(nanos);
+            }
+            inbound.flip();
+            int result = Math.min(len, inbound.remaining());
+            inbound.get(b, off, result);
+            inbound.compact();
+            if(readSuspended)
+                loop.execute(this::resumeReadingLocked);
+            return result;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private void resumeReadingLocked(){
+        lock.lock();
+        try {
+            resumeReading();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeOutbound(byte[] b, int off, int len) throws IOException {
+        enqueue(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)), len);
+    }
+
+    private void transferFile(Path file, long position, long count) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            //A region holds no heap memory, it is weighted so a few can be queued before blocking
+            enqueue(new FileRegion(fileChannel, position, count), BUFFER_SIZE);
+        }catch (IOException e){
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    private void enqueue(Object entry, long weight) throws IOException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIMEOUT);
+            while (pendingOutput >= MAX_PENDING_OUTPUT && !closed){
+                if(nanos <= 0)
+                    throw new SocketTimeoutException("Write timed out");
+                nanos = writable.awaitNanos(nanos);
+            }
+            if(closed)
+                throw new IOException("Connection closed");
+            outbound.add(entry);
+            pendingOutput += weight;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }finally {
+            lock.unlock();
+        }
+        loop.execute(this::flushOutbound);
+    }
+
+    private void flushOutbound(){
+        if(closed)
+            return;
+        try {
+            onWritable();
+        }catch (IOException e){
+            logger.log(Level.FINE, e, () -> "Error talking to " + remoteAddress);
+            close();
+        }
+    }
+
+    private class ConnectionInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return readInbound(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            return readInbound(b, off, len);
+        }
+    }
+
+    private class ConnectionOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len > 0)
+                writeOutbound(b, off, len);
+        }
+    }
+
+    private static class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        /**
+         * @return true once the whole region is written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            long result = file.transferTo(position, end - position, channel);
+            position += result;
+            if(result == 0 && position < end && position >= file.size())
+                throw new EOFException("File shrank while sending");
+            return position >= end;
+        }
+
+        void close(){
+            try {
+                file.close();
+            }catch (IOException e){
+                logger.log(Level.CONFIG, "Can't close file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package resource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * One page of a keyset-paginated access listing. Rows are ordered by (acc_path, is_dir), paths
+ * ignoring case like the column's collation, and a page starts right after the key carried by
+ * the cursor, so no page costs more than its own rows. The cursor is opaque to clients, it also
+ * records the sort order it was made for.
+ */
+public class Page {
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    public enum Sort {
+        PATH("path"), PATH_DESC("-path"), DIRS_FIRST("dirs");
+
+        private final String param;
+
+        Sort(String param) {
+            this.param = param;
+        }
+
+        static Sort of(String param){
+            for(Sort sort : values()){
+                if(sort.param.equals(param))
+                    return sort;
+            }
+            throw new IllegalArgumentException("Unknown sort: " + param);
+        }
+    }
+
+    private final int limit;
+    private final Sort sort;
+    private final String afterPath;
+    private final boolean afterDir;
+
+    public Page(int limit, Sort sort, String afterPath, boolean afterDir) {
+        this.limit = limit;
+        this.sort = sort;
+        this.afterPath = afterPath;
+        this.afterDir = afterDir;
+    }
+
+    /**
+     * Takes "limit", "cursor" and "sort" out of the url parameters, so the rest can be used as filters.
+     * @return null if none of them is present
+     * @throws IllegalArgumentException if a value is malformed or the cursor was made for another sort
+     */
+    public static Page fromParams(Map<String, String> params){
+        String limitParam = params.remove("limit");
+        String cursorParam = params.remove("cursor");
+        String sortParam = params.remove("sort");
+        if(limitParam == null && cursorParam == null && sortParam == null)
+            return null;
+
+        int limit = DEFAULT_LIMIT;
+        if(limitParam != null){
+            try {
+                limit = Integer.parseInt(limitParam);
+            }catch (NumberFormatException e){
+                throw new IllegalArgumentException("Bad limit: " + limitParam);
+            }
+            if(limit < 1)
+                throw new IllegalArgumentException("Bad limit: " + limitParam);
+            limit = Math.min(limit, MAX_LIMIT);
+        }
+        Sort sort = sortParam == null ? Sort.PATH : Sort.of(sortParam);
+        if(cursorParam == null)
+            return new Page(limit, sort, null, false);
+
+        String[] key;
+        try {
+            key = new String(Base64.getUrlDecoder().decode(cursorParam), StandardCharsets.UTF_8).split("\n", 3);
+        }catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("Bad cursor");
+        }
+        if(key.length != 3 || !key[0].equals(sort.param) || !(key[1].equals("0") || key[1].equals("1")))
+            throw new IllegalArgumentException("Bad cursor");
+        return new Page(limit, sort, key[2], key[1].equals("1"));
+    }
+
+    /**
+     * @return cursor of the page that starts after the given row
+     */
+    public String cursorAfter(String path, boolean isDir){
+        String key = sort.param + "\n" + (isDir ? "1" : "0") + "\n" + path;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public boolean hasCursor(){
+        return afterPath != null;
+    }
+
+    public String getAfterPath() {
+        return afterPath;
+    }
+
+    public boolean isAfterDir() {
+        return afterDir;
+    }
+
+    /**
+     * Orders two rows the way this page's sort does.
+     */
+    public int compare(String path1, boolean isDir1, String path2, boolean isDir2){
+        switch (sort){
+            case PATH_DESC:
+                return -compareByPath(path1, isDir1, path2, isDir2);
+            case DIRS_FIRST:
+                int dirs = Boolean.compare(isDir2, isDir1);
+                return dirs != 0 ? dirs : path1.compareToIgnoreCase(path2);
+            default:
+                return compareByPath(path1, isDir1, path2, isDir2);
+        }
+    }
+
+    private static int compareByPath(String path1, boolean isDir1, String path2, boolean isDir2){
+        int paths = path1.compareToIgnoreCase(path2);
+        return paths != 0 ? paths : Boolean.compare(isDir1, isDir2);
+    }
+
+    /**
+     * @return true if the row belongs on this page or a later one
+     */
+    public boolean isAfterCursor(String path, boolean isDir){
+        return afterPath == null || compare(path, isDir, afterPath, afterDir) > 0;
+    }
+}
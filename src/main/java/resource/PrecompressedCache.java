@@ -0,0 +1,287 @@
+package resource;
+
+import org.apache.commons.codec.binary.Hex;
+import utils.FineLogger;
+import utils.Http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps gzip and deflate variants of served files on disk, so a file is compressed once and
+ * then sent with zero-copy like any other file. Variants are named after the source file's
+ * mtime and size, a changed file simply gets a new variant and the old ones are removed.
+ * Only files requested a few times get a variant, compressed on a background thread while
+ * requests are compressed on the fly. Variants share a disk budget, the least recently sent
+ * go first, and a deleted file's variants are removed with it.
+ */
+public class PrecompressedCache {
+    private static final Logger logger = FineLogger.getLogger(PrecompressedCache.class.getName());
+    //Request counts of files without a variant are forgotten past this many
+    private static final int MAX_TRACKED = 10_000;
+    private static final int MAX_QUEUED = 64;
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final long maxBytes;
+    private final int minRequests;
+    private final ConcurrentMap<Path, Integer> requests = new ConcurrentHashMap<>();
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+    //Variant to its size, least recently sent first
+    private final LinkedHashMap<Path, Long> variants = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long usedBytes;
+    private final ExecutorService compressor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED), r -> {
+                Thread thread = new Thread(r, "precompressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * @param maxFileSize larger files are not kept, they are compressed while sending
+     * @param maxBytes total size of the variants on disk
+     * @param minRequests requests for a version of a file before it gets a variant
+     */
+    public PrecompressedCache(Path directory, long maxFileSize, long maxBytes, int minRequests) {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxBytes = maxBytes;
+        this.minRequests = Math.max(1, minRequests);
+        loadVariants();
+    }
+
+    private static String hash(Path file){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] path = file.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+            return Hex.encodeHexString(digest.digest(path));
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String extension(String encoding){
+        return encoding.equals("gzip") ? ".gz" : ".zz";
+    }
+
+    /**
+     * Counts variants left by an earlier run against the budget, oldest first in eviction order.
+     */
+    private void loadVariants(){
+        if(!Files.isDirectory(directory))
+            return;
+        List<Path> found;
+        try (Stream<Path> files = Files.walk(directory, 2)){
+            found = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }catch (IOException e){
+            logger.log(Level.WARNING, "Can't read compressed variants in " + directory, e);
+            return;
+        }
+        Map<Path, FileTime> modified = new LinkedHashMap<>();
+        for(Path variant : found){
+            try {
+                if(variant.getFileName().toString().endsWith(".tmp"))
+                    Files.deleteIfExists(variant);
+                else
+                    modified.put(variant, Files.getLastModifiedTime(variant));
+            }catch (IOException e){
+                logger.log(Level.CONFIG, "Can't check compressed variant " + variant, e);
+            }
+        }
+        modified.entrySet().stream().sorted(Map.Entry.comparingByValue(Comparator.naturalOrder()))
+                .forEach(entry -> {
+                    try {
+                        added(entry.getKey(), Files.size(entry.getKey()));
+                    }catch (IOException e){
+                        logger.log(Level.CONFIG, "Can't check compressed variant " + entry.getKey(), e);
+                    }
+                });
+    }
+
+    /**
+     * @return variant of the file as of the given mtime and size, null if there is none yet or the file
+     * is too large to keep one. A file requested often enough is queued for compression.
+     */
+    public Path variant(Path file, long lastModified, long size, String encoding) {
+        if(size > maxFileSize)
+            return null;
+        String name = Long.toHexString(lastModified) + "-" + Long.toHexString(size) + extension(encoding);
+        Path variant = directory.resolve(hash(file)).resolve(name);
+        boolean known;
+        lock.lock();
+        try {
+            known = variants.get(variant) != null;
+        }finally {
+            lock.unlock();
+        }
+        if(known){
+            if(Files.exists(variant))
+                return variant;
+            forget(variant);
+        }
+
+        if(requests.merge(variant, 1, Integer::sum) >= minRequests && queued.add(variant)){
+            requests.remove(variant);
+            try {
+                compressor.execute(() -> {
+                    try {
+                        compress(file, variant, lastModified, size, encoding);
+                    }finally {
+                        queued.remove(variant);
+                    }
+                });
+            }catch (RejectedExecutionException e){
+                //Enough is queued, a later request tries again
+                queued.remove(variant);
+            }
+        }
+        if(requests.size() > MAX_TRACKED)
+            requests.clear();
+        return null;
+    }
+
+    private void compress(Path file, Path variant, long lastModified, long size, String encoding){
+        Path fileDirectory = variant.getParent();
+        Path temp = null;
+        try {
+            Files.createDirectories(fileDirectory);
+            temp = Files.createTempFile(fileDirectory, null, ".tmp");
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = Files.newOutputStream(temp);
+                 OutputStream encoder = Http.encodingStream(out, encoding)){
+                in.transferTo(encoder);
+            }
+            if(Files.getLastModifiedTime(file).toMillis() != lastModified || Files.size(file) != size)
+                return;
+            Files.move(temp, variant, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            long variantSize = Files.size(variant);
+            logger.fine(() -> "Compressed " + file + " to " + variantSize + " bytes with " + encoding);
+            removeStale(fileDirectory, variant.getFileName().toString());
+            added(variant, variantSize);
+        }catch (NoSuchFileException e){
+            logger.fine(() -> "Not compressing " + file + ", it is gone");
+        }catch (IOException e){
+            logger.log(Level.CONFIG, "Can't compress " + file, e);
+        }finally {
+            if(temp != null)
+                deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Counts a new variant and removes the least recently sent ones until the budget holds.
+     */
+    private void added(Path variant, long size){
+        List<Path> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            Long previous = variants.put(variant, size);
+            usedBytes += size - (previous == null ? 0 : previous);
+            for(Iterator<Map.Entry<Path, Long>> iterator = variants.entrySet().iterator();
+                usedBytes > maxBytes && iterator.hasNext(); ){
+                Map.Entry<Path, Long> eldest = iterator.next();
+                usedBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                iterator.remove();
+            }
+        }finally {
+            lock.unlock();
+        }
+        for(Path path : evicted){
+            deleteQuietly(path);
+            //Only goes once the file's last variant is gone
+            deleteQuietly(path.getParent());
+        }
+        if(!evicted.isEmpty())
+            logger.fine(() -> "Evicted " + evicted.size() + " compressed variants");
+    }
+
+    private void forget(Path variant){
+        lock.lock();
+        try {
+            Long size = variants.remove(variant);
+            if(size != null)
+                usedBytes -= size;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private static void deleteQuietly(Path path){
+        try {
+            Files.deleteIfExists(path);
+        }catch (DirectoryNotEmptyException e){
+            //Still holds other variants
+        }catch (IOException e){
+            logger.log(Level.CONFIG, "Can't delete " + path, e);
+        }
+    }
+
+    /**
+     * Drops variants of older versions of the file, variants of the current one in the other encoding stay.
+     */
+    private void removeStale(Path fileDirectory, String current){
+        String version = current.substring(0, current.lastIndexOf('.'));
+        try (DirectoryStream<Path> variants = Files.newDirectoryStream(fileDirectory)){
+            for(Path variant : variants){
+                String name = variant.getFileName().toString();
+                if(!name.startsWith(version + ".") && !name.endsWith(".tmp")){
+                    Files.deleteIfExists(variant);
+                    forget(variant);
+                }
+            }
+        }catch (IOException e){
+            logger.log(Level.CONFIG, "Can't clean compressed variants in " + fileDirectory, e);
+        }
+    }
+
+    /**
+     * Removes every variant of a file that was deleted or replaced.
+     */
+    public void remove(Path file){
+        Path fileDirectory = directory.resolve(hash(file));
+        requests.keySet().removeIf(variant -> variant.getParent().equals(fileDirectory));
+        if(!Files.isDirectory(fileDirectory))
+            return;
+        try (DirectoryStream<Path> variants = Files.newDirectoryStream(fileDirectory)){
+            for(Path variant : variants){
+                if(!variant.getFileName().toString().endsWith(".tmp")){
+                    Files.deleteIfExists(variant);
+                    forget(variant);
+                }
+            }
+        }catch (IOException e){
+            logger.log(Level.CONFIG, "Can't remove compressed variants in " + fileDirectory, e);
+        }
+        deleteQuietly(fileDirectory);
+    }
+
+    public long getUsedBytes(){
+        lock.lock();
+        try {
+            return usedBytes;
+        }finally {
+            lock.unlock();
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class Resource{
     private AccessType[] accessType;
     private Path path;
     private String username;
+    private Boolean dir;
 
     public Path getPath() {
         return path;
@@ -23,6 +24,21 @@ public class Resource{
         this.username = username;
     }
 
+    /**
+     * @param dir is_dir of the access row the resource was read from
+     */
+    public Resource(Path path, String username, boolean dir, AccessType... accessType) {
+        this(path, username, accessType);
+        this.dir = dir;
+    }
+
+    /**
+     * @return is_dir of the access row, null if the resource wasn't read from one
+     */
+    public Boolean isDir() {
+        return dir;
+    }
+
     public AccessType[] getAccessTypes(){
         return accessType;
     }
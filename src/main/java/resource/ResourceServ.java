@@ -1,119 +1,487 @@
 package resource;
 
 import com.auth0.jwt.JWT;
-import com.auth0.jwt.algorithms.Algorithm;
-import com.auth0.jwt.exceptions.SignatureVerificationException;
+import com.auth0.jwt.exceptions.JWTDecodeException;
+import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import org.json.JSONException;
 import org.json.JSONObject;
+import utils.BodyInputStream;
+import utils.ChunkedOutputStream;
+import utils.DigestChannel;
+import utils.DirectBufferPool;
 import utils.FineLogger;
 import utils.Http;
+import utils.HttpInputStream;
+import utils.HttpParser;
+import utils.MeteredInputStream;
+import utils.MeteredOutputStream;
+import utils.Metrics;
+import utils.MultipartScanner;
+import utils.RequestHead;
 
 import static utils.ServerConstants.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.security.KeyFactory;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.fileupload.MultipartStream;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import org.apache.commons.codec.binary.Hex;
 
 public class ResourceServ implements Runnable{
     private Socket client;
     private Access<String, Resource> access;
+    private FileTransfer fileTransfer;
+    private SocketChannel uploadSocket;
     private String currentUsername = null;
+    private boolean chunkedAllowed;
+    private String acceptedEncoding;
     private static Logger logger = FineLogger.getLogger(ResourceServ.class.getName(), "logs/Resource.txt");
-    private static final Path PATH_TO_KEY = Paths.get("src", "main", "java", "resource", "public_der");
-    private static final PublicKey PUBLIC_KEY = loadPublicKey();
-    private static final Algorithm ALGORITHM = Algorithm.RSA256((RSAPublicKey)PUBLIC_KEY, null);
+    private static final String DEFAULT_KEYS = "rs256-1:RS256:" + Paths.get("src", "main", "java", "resource", "public_der");
+    private static final VerificationKeys KEYS = VerificationKeys.fromConfig(
+            System.getProperty("token.verify.keys", DEFAULT_KEYS), System.getProperty("token.verify.defaultKid"));
+    static final TokenCache TOKEN_CACHE = new TokenCache(Integer.getInteger("token.cache.size", 10_000),
+            Long.getLong("token.cache.maxAge", 300_000));
+    static final Metrics<Route> METRICS = new Metrics<>("resource", Route.class);
+    //Served without a token, only enable it where the port is not reachable from outside
+    private static final boolean METRICS_ENDPOINT = Boolean.getBoolean("metrics.endpoint");
     private static final String baseHeader = "Access-Control-Allow-Origin:*" + NEW_LINE;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    static final PrecompressedCache COMPRESSED_FILES = new PrecompressedCache(
+            Paths.get(System.getProperty("compress.cache.dir", "cache/compressed")),
+            Long.getLong("compress.cache.maxFileSize", 16 * 1024 * 1024),
+            Long.getLong("compress.cache.maxBytes", 256L * 1024 * 1024),
+            Integer.getInteger("compress.cache.minRequests", 3));
+    private static final int STAT_BATCH = 64;
+    private static final int PARALLEL_STAT_THRESHOLD = 8;
+    private static final int STAT_QUEUE_SIZE = 1024;
+    private static final ExecutorService STAT_POOL = newStatPool(Integer.getInteger("listing.stat.threads", 8));
+    //Null unless uploads are deduplicated
+    static final BlobStore BLOBS = Boolean.getBoolean("storage.dedup")
+            ? new BlobStore(Paths.get(System.getProperty("storage.blobs.dir", "storage/blobs"))) : null;
+    //Null when -Dhotcache.maxBytes=0
+    static final HotFileCache HOT_FILES = newHotFileCache(Long.getLong("hotcache.maxBytes", 64L * 1024 * 1024),
+            Long.getLong("hotcache.maxFileSize", 64 * 1024));
+    private static final DirectBufferPool UPLOAD_BUFFERS = new DirectBufferPool(
+            Integer.getInteger("upload.bufferSize", 256 * 1024), Integer.getInteger("upload.buffers", 16));
+    private static final String UPLOAD_PREFIX = ".upload-";
+    private static final String UPLOAD_SUFFIX = ".tmp";
+    private static final ScheduledExecutorService UPLOAD_WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "upload-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static PublicKey loadPublicKey() {
-        try {
-            byte[] keyBytes = Files.readAllBytes(PATH_TO_KEY);
-            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-            try {
-                KeyFactory kf = KeyFactory.getInstance("RSA");
-                return kf.generatePublic(spec);
-            }catch (NoSuchAlgorithmException | InvalidKeySpecException e){
-                logger.log(Level.WARNING, "Wrong public key", e);
+    /**
+     * Routes requests are measured by.
+     */
+    enum Route implements Metrics.Route {
+        GET_RESOURCE("GET", "/resource"),
+        GET_ACCESS("GET", "/access"),
+        POST_RESOURCE("POST", "/resource"),
+        POST_ACCESS("POST", "/access"),
+        DELETE_RESOURCE("DELETE", "/resource"),
+        METRICS("GET", "/metrics"),
+        OTHER("other", "other");
+
+        private final String method;
+        private final String route;
+
+        Route(String method, String route) {
+            this.method = method;
+            this.route = route;
+        }
+
+        @Override
+        public String method() {
+            return method;
+        }
+
+        @Override
+        public String route() {
+            return route;
+        }
+
+        static Route of(String method, String target){
+            if(method == null || target == null)
+                return OTHER;
+            boolean resource = target.startsWith("/resource");
+            switch (method){
+                case "GET":
+                    if(resource)
+                        return GET_RESOURCE;
+                    if(target.startsWith("/access"))
+                        return GET_ACCESS;
+                    return METRICS_ENDPOINT && target.equals("/metrics") ? METRICS : OTHER;
+                case "POST":
+                    if(resource)
+                        return POST_RESOURCE;
+                    return target.startsWith("/access") ? POST_ACCESS : OTHER;
+                case "DELETE":
+                    return resource ? DELETE_RESOURCE : OTHER;
+                default:
+                    return OTHER;
             }
+        }
+    }
 
-        }catch (IOException e){
-            logger.log(Level.WARNING, "Public key does not exist", e);
+    /**
+     * Reads uploads straight from the blocking socket channel. Channel reads ignore SO_TIMEOUT,
+     * so the socket is closed once a whole keep-alive timeout passes without a byte arriving.
+     */
+    private final class UploadChannel implements ReadableByteChannel {
+        private final ScheduledFuture<?> watchdog;
+        private volatile long received;
+        private long checked = -1;
+
+        UploadChannel() {
+            watchdog = UPLOAD_WATCHDOG.scheduleWithFixedDelay(this::check,
+                    KEEP_ALIVE_TIMEOUT, KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        private void check(){
+            long now = received;
+            if(now == checked){
+                logger.fine(() -> "Upload stalled for client " + client.getInetAddress());
+                try {
+                    client.close();
+                }catch (IOException e){
+                    logger.log(Level.FINE, "Can't close stalled upload", e);
+                }
+            }
+            checked = now;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int result = uploadSocket.read(dst);
+            if(result > 0){
+                received += result;
+                METRICS.getBytesIn().add(result);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return uploadSocket.isOpen();
+        }
+
+        @Override
+        public void close() {
+            watchdog.cancel(false);
         }
-        return null;
     }
 
     public ResourceServ(Socket client, Access<String, Resource> accessVerifier) {
+        this(client, accessVerifier, blockingTransfer(client.getChannel()));
+    }
+
+    ResourceServ(Socket client, Access<String, Resource> accessVerifier, FileTransfer fileTransfer) {
         this.client = client;
         this.access = accessVerifier;
+        this.fileTransfer = fileTransfer;
+        SocketChannel channel = client == null ? null : client.getChannel();
+        //Non-blocking channels are read by the event loop
+        this.uploadSocket = channel != null && channel.isBlocking() ? channel : null;
     }
 
-    private JSONObject formJsonResource(Resource resource){
-        long lastModified = 0;
-        long size = 0;
-        Path path = resource.getPath();
-        try {
-            lastModified = Files.getLastModifiedTime(path).toMillis();
-            size = Files.size(path);
-        }catch (IOException e){
-            logger.log(Level.CONFIG, "Error getting file info", e);
-        }
+    /**
+     * sendfile straight into a blocking socket channel, or null for plain socket streams.
+     */
+    static FileTransfer blockingTransfer(SocketChannel channel){
+        if(channel == null || !channel.isBlocking())
+            return null;
+        return new FileTransfer() {
+            @Override
+            public void transfer(Path file, long position, long count) throws IOException {
+                try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)){
+                    long sent = 0;
+                    while (sent < count){
+                        long result = fileChannel.transferTo(position + sent, count - sent, channel);
+                        if(result <= 0)
+                            throw new EOFException("File " + file + " shrank while sending");
+                        sent += result;
+                    }
+                }
+            }
 
+            @Override
+            public void send(ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        };
+    }
+
+    static JSONObject formJsonResource(Resource resource, BasicFileAttributes attributes){
+        Path path = resource.getPath();
         String fileName = path.getFileName().toString();
-        boolean isDir = Files.isDirectory(path);
+        boolean isDir = attributes.isDirectory();
         String pathWithoutRes = unixLikePath(path.toString()).replaceFirst("resource/","");
         return new JSONObject()
                 .put("name", fileName)
-                .put("size", isDir ? " " : size)
-                .put("modified", lastModified)
+                .put("size", isDir ? " " : attributes.size())
+                .put("modified", attributes.lastModifiedTime().toMillis())
                 .put("isDir", isDir)
                 .put("path", isDir ? (pathWithoutRes + "/") : pathWithoutRes)
                 .put("accessType", resource.getAccessTypes());
     }
 
-    private void sendDirectoryStructure(Writer writer, Resource resource, Map<String, String> urlParams) throws IOException{
-        JSONObject jsonObject = new JSONObject();
+    private static HotFileCache newHotFileCache(long maxBytes, long maxFileSize){
+        return maxBytes > 0 ? new HotFileCache(maxBytes, maxFileSize) : null;
+    }
+
+    private static ExecutorService newStatPool(int threads){
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(STAT_QUEUE_SIZE), r -> {
+                    Thread thread = new Thread(r, "listing-stat");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * One stat per entry.
+     * @return null if the file is gone
+     */
+    private static BasicFileAttributes readAttributes(Path path){
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }catch (NoSuchFileException e){
+            return null;
+        }catch (IOException e){
+            logger.log(Level.CONFIG, "Error getting file info", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stats a batch of entries, on the stat pool when there are enough of them to pay off.
+     * @return attributes in entry order
+     */
+    private static List<BasicFileAttributes> readAttributes(List<Resource> batch){
+        List<BasicFileAttributes> attributes = new ArrayList<>(batch.size());
+        if(batch.size() < PARALLEL_STAT_THRESHOLD){
+            for(Resource resource : batch)
+                attributes.add(readAttributes(resource.getPath()));
+            return attributes;
+        }
+        List<Future<BasicFileAttributes>> futures = new ArrayList<>(batch.size());
+        for(Resource resource : batch)
+            futures.add(STAT_POOL.submit(() -> readAttributes(resource.getPath())));
+        try {
+            for(Future<BasicFileAttributes> future : futures)
+                attributes.add(future.get());
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException());
+        }catch (ExecutionException e){
+            throw new IllegalStateException(e.getCause());
+        }finally {
+            for(Future<BasicFileAttributes> future : futures)
+                future.cancel(true);
+        }
+        return attributes;
+    }
+
+    /**
+     * Same as {@link #forEachOnPage} for entries that still exist, handed over with their attributes
+     * in query order. Entries are stat-ed {@link #STAT_BATCH} at a time.
+     */
+    private String forEachExisting(String username, Map<String, String> urlParams, Page page,
+                                   BiConsumer<Resource, BasicFileAttributes> action){
+        List<Resource> batch = new ArrayList<>(STAT_BATCH);
+        Runnable flush = () -> {
+            List<BasicFileAttributes> attributes = readAttributes(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                if(attributes.get(i) != null)
+                    action.accept(batch.get(i), attributes.get(i));
+            }
+            batch.clear();
+        };
+        String next = forEachOnPage(username, urlParams, page, x -> {
+            batch.add(x);
+            if(batch.size() == STAT_BATCH)
+                flush.run();
+        });
+        flush.run();
+        return next;
+    }
+
+    private static MessageDigest listingDigest(){
+        try {
+            return MessageDigest.getInstance("MD5");
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs the access query for one page, at most {@code page.getLimit()} rows reach the action.
+     * @param page null for every row
+     * @return cursor of the next page or null if this is the last one
+     */
+    private String forEachOnPage(String username, Map<String, String> urlParams, Page page,
+                                 Consumer<Resource> action){
+        if(page == null){
+            access.forEachUserAccess(username, urlParams, action);
+            return null;
+        }
+        int[] rows = {0};
+        Resource[] last = {null};
+        String[] next = {null};
+        access.forEachUserAccess(username, urlParams, page, x -> {
+            if(rows[0]++ < page.getLimit()){
+                last[0] = x;
+                action.accept(x);
+            }else if(next[0] == null && last[0] != null){
+                //The row's is_dir, a stale row of a deleted directory must keep its place in the order
+                Path lastPath = last[0].getPath();
+                Boolean isDir = last[0].isDir();
+                next[0] = page.cursorAfter(unixLikePath(lastPath.toString()),
+                        isDir != null ? isDir : Files.isDirectory(lastPath));
+            }
+        });
+        return next[0];
+    }
+
+    /**
+     * Writes {"files":[...]} one entry at a time, each entry also goes into the digest if there is one.
+     * A page that isn't the last one ends with the "next" cursor.
+     */
+    private void writeListing(Writer out, MessageDigest digest, String username, Map<String, String> urlParams,
+                              Page page) throws IOException{
+        out.write("{\"files\":[");
+        boolean[] first = {true};
+        String next;
+        try {
+            next = forEachExisting(username, urlParams, page, (x, attributes) -> {
+                String entry = formJsonResource(x, attributes).toString();
+                if(digest != null)
+                    digest.update(entry.getBytes(StandardCharsets.UTF_8));
+                try {
+                    if(!first[0])
+                        out.write(',');
+                    first[0] = false;
+                    out.write(entry);
+                }catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+        out.write(']');
+        if(next != null){
+            if(digest != null)
+                digest.update(next.getBytes(StandardCharsets.US_ASCII));
+            out.write(",\"next\":" + JSONObject.quote(next));
+        }
+        out.write('}');
+    }
+
+    private static String listingETag(MessageDigest digest){
+        return "\"" + Hex.encodeHexString(digest.digest()) + "\"";
+    }
+
+    /**
+     * A page holds at most {@code limit} entries, it is built first so its ETag goes in the header
+     * and a revalidation can be answered with 304. A whole directory is streamed to HTTP/1.1 clients
+     * as its entries are read, chunked and compressed on the way, without an ETag since the body is
+     * not known before it is sent. HTTP/1.0 clients can't take chunks and get it buffered.
+     */
+    private void sendDirectoryStructure(Writer writer, OutputStream rawO, Resource resource,
+                                        Map<String, String> urlParams, Map<String, String> header) throws IOException{
         Path path = resource.getPath();
+        String username = resource.getUsername();
+        Page page;
+        try {
+            page = Page.fromParams(urlParams);
+        }catch (IllegalArgumentException e){
+            writer.write(ERROR400);
+            Http.writeJSONResponse(writer, BAD_REQUEST);
+            return;
+        }
         urlParams.put("path", unixLikePath(path.toString()) + "/");
 
-        System.out.println("HERERERERERERE");
-        System.out.println(urlParams.get("path"));
-
-        List<Resource> accessibleResources
-                = new ArrayList<>(access.getUserAccess(resource.getUsername(), urlParams));
-        accessibleResources.stream().filter(x -> Files.exists(x.getPath()))
-                .forEach(x -> jsonObject.append("files", formJsonResource(x).toString()));
+        if(page != null || !chunkedAllowed){
+            StringWriter json = new StringWriter();
+            MessageDigest digest = listingDigest();
+            writeListing(json, digest, username, urlParams, page);
+            String encoding = json.getBuffer().length() >= MIN_COMPRESS_SIZE ? acceptedEncoding : null;
+            String etag = Http.encodedETag(listingETag(digest), encoding);
+            if(Http.isNotModified(header, etag, -1)){
+                Http.writeNotModified(writer, etag, -1);
+                return;
+            }
+            writer.write(OK);
+            writer.write(baseHeader);
+            writer.write(NO_CACHE);
+            writer.write(ETAG + etag + NEW_LINE);
+            writer.write("Type: directory" + NEW_LINE);
+            Http.writeJSONResponse(writer, rawO, json.toString(), encoding);
+            return;
+        }
 
         writer.write(OK);
         writer.write(baseHeader);
+        writer.write(NO_CACHE);
         writer.write("Type: directory" + NEW_LINE);
-        Http.writeJSONResponse(writer, jsonObject.toString());
+        writer.write(CONTENT_TYPE + "application/json" + NEW_LINE);
+        writer.write(VARY_ACCEPT_ENCODING);
+        if(acceptedEncoding != null)
+            writer.write(CONTENT_ENCODING + acceptedEncoding + NEW_LINE);
+        writer.write(TRANSFER_ENCODING_CHUNKED + NEW_LINE);
+        writer.flush();
 
+        ChunkedOutputStream chunked = new ChunkedOutputStream(rawO);
+        DeflaterOutputStream encoder = acceptedEncoding != null
+                ? Http.encodingStream(chunked, acceptedEncoding) : null;
+        Writer body = new OutputStreamWriter(encoder != null ? encoder : chunked, StandardCharsets.UTF_8);
+        writeListing(body, null, username, urlParams, null);
+        body.flush();
+        if(encoder != null)
+            encoder.finish();
+        chunked.finish();
     }
 
-    private void send(Writer writer, OutputStream output, Resource resource, Map<String,String> urlParams)
-            throws IOException{
+    private void send(Writer writer, OutputStream output, Resource resource, Map<String,String> urlParams,
+                      Map<String, String> header) throws IOException{
         Path path = resource.getPath();
+        BasicFileAttributes attributes = readAttributes(path);
 
-        if(Files.isDirectory(path)){
-            sendDirectoryStructure(writer, resource, urlParams);
+        if(attributes != null && attributes.isDirectory()){
+            sendDirectoryStructure(writer, output, resource, urlParams, header);
         }else{
             String contentType = URLConnection.getFileNameMap().getContentTypeFor(path.getFileName().toString());
-            sendFile(writer, output, contentType, path);
+            if(contentType == null)
+                contentType = "application/octet-stream";
+            sendFile(writer, output, contentType, path, attributes, header);
         }
     }
 
@@ -122,38 +490,47 @@ public class ResourceServ implements Runnable{
     }
 
 
-    private JSONObject getAccess(Map<String, String> urlParams)
+    private JSONObject getAccess(Map<String, String> urlParams, Page page)
     {
-        List<Resource> resources = access.getUserAccess(currentUsername, urlParams);
         JSONObject accesses = new JSONObject();
-        for(Resource r : resources){
+        String next = forEachExisting(currentUsername, urlParams, page, (r, attributes) -> {
             Path p = r.getPath();
-            if(Files.exists(p)){
-                String path = Files.isDirectory(p) ? p + "/" : p.toString();
-                path = unixLikePath(path).replaceFirst("resource/","");
-                accesses.append("access", new JSONObject().put("path", path)
-                        .put("isDir", Files.isDirectory(p)).put("accessType", Arrays.toString(r.getAccessTypes())));
-            }
-        }
+            String path = attributes.isDirectory() ? p + "/" : p.toString();
+            path = unixLikePath(path).replaceFirst("resource/","");
+            accesses.append("access", new JSONObject().put("path", path)
+                    .put("isDir", attributes.isDirectory()).put("accessType", Arrays.toString(r.getAccessTypes())));
+        });
+        if(next != null)
+            accesses.put("next", next);
 
         return accesses;
     }
 
-    private void sendUserAccesses(Writer writer, Map<String, String> urlParams) throws IOException{
+    private void sendUserAccesses(Writer writer, OutputStream rawO, Map<String, String> urlParams) throws IOException{
+        Page page;
+        try {
+            page = Page.fromParams(urlParams);
+        }catch (IllegalArgumentException e){
+            writer.write(ERROR400);
+            Http.writeJSONResponse(writer, BAD_REQUEST);
+            return;
+        }
         JSONObject accesses;
-        accesses = getAccess(urlParams);
+        accesses = getAccess(urlParams, page);
         if(accesses.isEmpty()) {
             writer.write(NOT_FOUND);
             Http.writeJSONResponse(writer, USER_HAS_NO_ACCESSED);
             return;
         }
         logger.log(Level.FINE, "Sending user accesses");
+        String json = accesses.toString();
         writer.write(OK);
         writer.write(baseHeader);
-        Http.writeJSONResponse(writer, accesses.toString());
+        Http.writeJSONResponse(writer, rawO, json, json.length() >= MIN_COMPRESS_SIZE ? acceptedEncoding : null);
     }
 
-    private void doGet(Writer writer, OutputStream output, String request) throws IOException{
+    private void doGet(Writer writer, OutputStream output, String request, Map<String, String> header)
+            throws IOException{
         Path path = Http.getPathFromUrl(request);
         Resource resource = new Resource(path, currentUsername, AccessType.READ);
         Map<String, String> urlParams = Http.parseUrlParams(request);
@@ -163,27 +540,48 @@ public class ResourceServ implements Runnable{
                 writer.write(UNAUTHORIZED);
                 Http.writeJSONResponse(writer, ACCESS_DENIED);
             }else {
-                send(writer, output, resource, urlParams);
+                send(writer, output, resource, urlParams, header);
             }
         }
         else if(request.startsWith("access")) {
-            sendUserAccesses(writer, urlParams);
+            sendUserAccesses(writer, output, urlParams);
+        }
+        else {
+            writer.write(FORBIDDEN);
+            Http.writeJSONResponse(writer, ACC_FORBIDDEN);
         }
     }
 
 
+    private void sendMetrics(Writer writer) throws IOException{
+        StringWriter body = new StringWriter();
+        METRICS.write(body);
+        String text = body.toString();
+        writer.write(OK);
+        writer.write(NO_CACHE);
+        Http.writeContentHeaders(writer, text.getBytes(StandardCharsets.UTF_8).length, PROMETHEUS_TEXT);
+        writer.write(text);
+    }
+
     private boolean verifyToken(Writer writer, String token) throws IOException{
         if(token == null){
             writer.write(ERROR400);
             Http.writeJSONResponse(writer, ACCESSTYPE_TOKEN_NOT_EXIST);
             return false;
         }
-        DecodedJWT decodedJWT = JWT.decode(token);
-
-        if(!tokenIsValid(decodedJWT)){
-            writer.write(ERROR400);
-            Http.writeJSONResponse(writer, ACCESSTYPE_TOKEN_INVALID);
-            return false;
+        DecodedJWT decodedJWT = TOKEN_CACHE.get(token);
+        if(decodedJWT == null) {
+            try {
+                decodedJWT = JWT.decode(token);
+            }catch (JWTDecodeException e){
+                decodedJWT = null;
+            }
+            if (decodedJWT == null || !tokenIsValid(decodedJWT)) {
+                writer.write(ERROR400);
+                Http.writeJSONResponse(writer, ACCESSTYPE_TOKEN_INVALID);
+                return false;
+            }
+            TOKEN_CACHE.put(token, decodedJWT);
         }
 
         //Setting username here is really bad design
@@ -200,29 +598,206 @@ public class ResourceServ implements Runnable{
         return access.hasAccess(resource);
     }
 
-    private void sendBytes(OutputStream rawO, Path file) throws IOException{
+    /**
+     * Sends part of a file, from {@link #HOT_FILES} when it holds or takes this version of the file.
+     */
+    private void sendBytes(OutputStream rawO, Path file, long lastModified, long size, long position, long count)
+            throws IOException{
+        ByteBuffer cached = HOT_FILES == null ? null : HOT_FILES.get(file, lastModified, size);
+        if(cached == null){
+            sendBytes(rawO, file, position, count);
+            return;
+        }
+        cached.position((int) position).limit((int) (position + count));
+        sendBuffer(rawO, cached);
+    }
+
+    void sendBuffer(OutputStream rawO, ByteBuffer buffer) throws IOException{
+        rawO.flush();
+        int count = buffer.remaining();
+        if(fileTransfer != null){
+            fileTransfer.send(buffer);
+            //Bypasses the metered stream
+            METRICS.getBytesOut().add(count);
+            return;
+        }
+        byte[] bytes = new byte[Math.max(1, Math.min(count, COPY_BUFFER_SIZE))];
+        while (buffer.hasRemaining()){
+            int length = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, length);
+            rawO.write(bytes, 0, length);
+        }
+        rawO.flush();
+    }
+
+    void sendBytes(OutputStream rawO, Path file, long position, long count) throws IOException{
         logger.finer("Sending file");
-        try(InputStream fin = new BufferedInputStream(new FileInputStream(file.toString()))){
-            byte[] bytes = new byte[1024];
-            while (fin.read(bytes) != -1){
-                rawO.write(bytes);
+        rawO.flush();
+        if(fileTransfer != null){
+            fileTransfer.transfer(file, position, count);
+            //Bypasses the metered stream
+            METRICS.getBytesOut().add(count);
+            return;
+        }
+        try(FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(count, COPY_BUFFER_SIZE)));
+            long sent = 0;
+            while (sent < count){
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - sent));
+                int result = fileChannel.read(buffer, position + sent);
+                if(result == -1)
+                    throw new EOFException("File " + file + " shrank while sending");
+                rawO.write(buffer.array(), 0, result);
+                sent += result;
             }
             logger.finer("Flushing bytes...");
             rawO.flush();
         }
     }
 
-    private void sendFile(Writer writer, OutputStream rawO, String contentType, Path file) throws IOException{
-        if(Files.exists(file) && Files.isReadable(file)) {
-            System.out.println(contentType);
-            Http.writeHeader(writer, Files.size(file), contentType);
+    /**
+     * Range applies unless If-Range names a different version of the file.
+     * @param lastModified -1 if a date can't tell versions apart
+     */
+    private static boolean ifRangeMatches(Map<String, String> header, String etag, long lastModified){
+        String ifRange = header.get("If-Range");
+        if(ifRange == null)
+            return true;
+        if(ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/"))
+            return ifRange.trim().equals(etag);
+        long date = Http.parseHttpDate(ifRange);
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+
+    private void sendRanges(Writer writer, OutputStream rawO, String contentType, Path file, long lastModified,
+                            long size, List<Http.Range> ranges, String validators) throws IOException{
+        writer.write(PARTIAL_CONTENT);
+        writer.write(baseHeader);
+        writer.write(ACCEPT_RANGES);
+        writer.write(validators);
+        if(ranges.size() == 1){
+            Http.Range range = ranges.get(0);
+            writer.write(CONTENT_RANGE + range.contentRange(size) + NEW_LINE);
+            Http.writeContentHeaders(writer, range.length(), contentType);
+            writer.flush();
+            sendBytes(rawO, file, lastModified, size, range.start, range.length());
+            return;
+        }
+
+        String boundary = "BYTERANGES" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String[] partHeaders = new String[ranges.size()];
+        String closing = NEW_LINE + "--" + boundary + "--" + NEW_LINE;
+        long length = closing.length();
+        for (int i = 0; i < partHeaders.length; i++) {
+            Http.Range range = ranges.get(i);
+            partHeaders[i] = NEW_LINE + "--" + boundary + NEW_LINE
+                    + CONTENT_TYPE + contentType + NEW_LINE
+                    + CONTENT_RANGE + range.contentRange(size) + NEW_LINE + NEW_LINE;
+            length += partHeaders[i].getBytes(StandardCharsets.UTF_8).length + range.length();
+        }
+        Http.writeContentHeaders(writer, length, "multipart/byteranges; boundary=" + boundary);
+        for (int i = 0; i < partHeaders.length; i++) {
+            writer.write(partHeaders[i]);
+            writer.flush();
+            sendBytes(rawO, file, lastModified, size, ranges.get(i).start, ranges.get(i).length());
+        }
+        writer.write(closing);
+        writer.flush();
+    }
+
+    /**
+     * Sends the file in a content coding: the precompressed variant with a length, or compressed on
+     * the fly with chunked encoding when there is no variant yet or the file is too large to keep one.
+     * @return false if neither is possible and the identity body has to be sent
+     */
+    private boolean sendEncoded(Writer writer, OutputStream rawO, String contentType, Path file,
+                                long lastModified, long size, String encoding, String validators) throws IOException{
+        Path variant = COMPRESSED_FILES.variant(file, lastModified, size, encoding);
+        if(variant == null && !chunkedAllowed)
+            return false;
+        writer.write(OK);
+        writer.write(VARY_ACCEPT_ENCODING);
+        writer.write(CONTENT_ENCODING + encoding + NEW_LINE);
+        writer.write(validators);
+        if(variant != null){
+            long variantSize = Files.size(variant);
+            Http.writeContentHeaders(writer, variantSize, contentType);
             writer.flush();
+            //Variants are named after the source version, so they are cached under its mtime
+            sendBytes(rawO, variant, lastModified, variantSize, 0, variantSize);
+            return true;
+        }
+        writer.write(CONTENT_TYPE + contentType + NEW_LINE);
+        writer.write(TRANSFER_ENCODING_CHUNKED + NEW_LINE);
+        writer.flush();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(rawO);
+        DeflaterOutputStream encoder = Http.encodingStream(chunked, encoding);
+        Files.copy(file, encoder);
+        encoder.finish();
+        chunked.finish();
+        return true;
+    }
+
+    /**
+     * @param attributes of the file, null if it does not exist
+     */
+    private void sendFile(Writer writer, OutputStream rawO, String contentType, Path file,
+                          BasicFileAttributes attributes, Map<String, String> header) throws IOException{
+        long size = attributes == null ? -1 : attributes.size();
+        long lastModified = attributes == null ? -1 : attributes.lastModifiedTime().toMillis();
+        //A cached file was readable when it was read, it is not checked again
+        if(attributes != null && (HOT_FILES != null && HOT_FILES.contains(file, lastModified, size)
+                || Files.isReadable(file))) {
+            logger.finest(contentType);
+            boolean compressible = Http.isCompressible(contentType);
+            //Ranges are only served from the identity body
+            String encoding = compressible && size >= MIN_COMPRESS_SIZE && !header.containsKey("Range")
+                    ? acceptedEncoding : null;
+            //Deduplicated files have a strong ETag from their content digest. Their mtime is the blob's,
+            //which goes back when a file is overwritten with older content, so it is no validator
+            String digest = BLOBS == null ? null : BLOBS.digestOf(file);
+            String identityETag = digest != null ? "\"" + digest + "\"" : Http.fileETag(lastModified, size);
+            long validatorTime = digest != null ? -1 : lastModified;
+            String etag = Http.encodedETag(identityETag, encoding);
+            if(Http.isNotModified(header, etag, validatorTime)){
+                Http.writeNotModified(writer, etag, validatorTime);
+                logger.fine(() -> "Not modified " + file);
+                return;
+            }
+            String lastModifiedHeader = validatorTime == -1 ? ""
+                    : LAST_MODIFIED + Http.formatHttpDate(validatorTime) + NEW_LINE;
             try{
-                sendBytes(rawO, file);
+                if(encoding != null && sendEncoded(writer, rawO, contentType, file, lastModified, size, encoding,
+                        ETAG + etag + NEW_LINE + lastModifiedHeader)){
+                    logger.fine(() -> "Sent " + file.toAbsolutePath() + " with " + encoding);
+                    return;
+                }
+                etag = identityETag;
+                String validators = ETAG + etag + NEW_LINE + lastModifiedHeader
+                        + (compressible ? VARY_ACCEPT_ENCODING : "");
+                List<Http.Range> ranges = ifRangeMatches(header, etag, validatorTime)
+                        ? Http.parseRanges(header.get("Range"), size) : null;
+                if(ranges == null) {
+                    writer.write(OK);
+                    writer.write(ACCEPT_RANGES);
+                    writer.write(validators);
+                    Http.writeContentHeaders(writer, size, contentType);
+                    writer.flush();
+                    sendBytes(rawO, file, lastModified, size, 0, size);
+                }else if(ranges.isEmpty()){
+                    writer.write(RANGE_NOT_SATISFIABLE);
+                    writer.write(baseHeader);
+                    writer.write(CONTENT_RANGE + "bytes */" + size + NEW_LINE);
+                    Http.writeEmptyResponse(writer);
+                }else {
+                    sendRanges(writer, rawO, contentType, file, lastModified, size, ranges, validators);
+                }
             }catch (IOException e){
+                //Response is cut short, the connection can't be reused
                 logger.log(Level.WARNING, "Error sending file", e);
+                throw e;
             }
-            logger.fine("Sent " + file.toAbsolutePath() + " to client " + client.getInetAddress());
+            logger.fine(() -> "Sent " + file.toAbsolutePath() + " to client " + client.getInetAddress());
         }else {
             writer.write(NOT_FOUND);
             Http.writeJSONResponse(writer, FILE_NOT_FOUND);
@@ -232,7 +807,7 @@ public class ResourceServ implements Runnable{
 
     private void deleteFile(Path path) throws IOException{
         try {
-            Files.delete(path);
+            removeFile(path);
         }catch (NoSuchFileException e){
             logger.log(Level.CONFIG, "Deleting file not found", e);
         }
@@ -250,7 +825,7 @@ public class ResourceServ implements Runnable{
             access.deleteAccess(resource);
             writer.write(OK);
             writer.write(baseHeader);
-            writer.flush();
+            Http.writeEmptyResponse(writer);
         }catch (Exception e){
             logger.log(Level.WARNING, "Something bad happened deleting a file", e);
             writer.write(ERROR400);
@@ -270,52 +845,112 @@ public class ResourceServ implements Runnable{
             }else{
                 deleteResource(writer, resource);
             }
+        }else {
+            writer.write(FORBIDDEN);
+            Http.writeJSONResponse(writer, ACC_FORBIDDEN);
+        }
+    }
+    /**
+     * Serves a single request of the connection and records it in {@link #METRICS}.
+     * @param metered stream under rawO the status code is read from, may be null
+     * @return true if the connection can be reused for the next request
+     */
+    boolean serveRequest(Writer writer, OutputStream rawO, InputStream rawI, RequestHead head,
+                         MeteredOutputStream metered) throws IOException{
+        long start = System.nanoTime();
+        Route route = Route.of(head.getMethod(), head.getTarget());
+        METRICS.requestStarted();
+        if(metered != null)
+            metered.startResponse();
+        try {
+            return handleRequest(writer, rawO, rawI, head, route);
+        }finally {
+            METRICS.requestFinished(route, metered == null ? 0 : metered.getStatus(), start);
         }
+    }
+
+    private boolean handleRequest(Writer writer, OutputStream rawO, InputStream rawI, RequestHead head, Route route)
+            throws IOException{
+        currentUsername = null;
+        logger.finer(() -> "Request = " + head.getRequestLine());
+        if(head.getTarget() == null){
+            writer.write(ERROR400);
+            Http.writeJSONResponse(writer, BAD_REQUEST);
+            return false;
+        }
+        String path = head.getTarget().substring(1);
+        String requestType = head.getMethod();
+        String version = head.getVersion();
+        chunkedAllowed = HTTP_1_1.equals(version);
+
+        Map<String, String> header = head.getHeaders();
+        long contentLength = head.getContentLength();
+        acceptedEncoding = Http.negotiateEncoding(header.get("Accept-Encoding"));
+        //Only bodies with a known length can be skipped to reach the next request
+        boolean framed = contentLength >= 0 && !header.containsKey("Transfer-Encoding");
+        BodyInputStream body = new BodyInputStream(rawI, framed ? contentLength : Long.MAX_VALUE);
+        String token = getToken(header);
 
+        if(route == Route.METRICS) {
+            sendMetrics(writer);
+        }else if(verifyToken(writer, token)) {
+            logger.finer("Token exist");
+            switch (requestType) {
+                case "GET":
+                    logger.finer("Doing Get...");
+                    doGet(writer, rawO, path, header);
+                    break;
+                case "POST":
+                    logger.finer("Doing POST...");
+                    doPost(writer, body, path, header);
+                    break;
+                case "DELETE":
+                    logger.finer("Doing DELETE...");
+                    doDelete(writer, path);
+                    break;
+                default:
+                    writer.write(NOT_IMPLEMENTED);
+                    Http.writeEmptyResponse(writer);
+            }
+        }
+        writer.flush();
+
+        return framed && Http.isKeepAlive(version, header) && body.drain(MAX_BODY_DRAIN);
     }
+
     @Override
     public void run() {
 
         try {
-            OutputStream rawO = new BufferedOutputStream(client.getOutputStream());
+            client.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            MeteredOutputStream metered = new MeteredOutputStream(client.getOutputStream(), METRICS.getBytesOut());
+            OutputStream rawO = new BufferedOutputStream(metered);
             Writer writer = new OutputStreamWriter(rawO, StandardCharsets.UTF_8);
-            InputStream rawI = new BufferedInputStream(client.getInputStream());
-
-            String requestLine = Http.readLine(rawI);
-            System.out.println("Request = " + requestLine);
-            String[] tokens = requestLine.split("\\s+" );
-            //Must be some checking of array exception
-            String path = tokens[1].substring(1);
-            String requestType = tokens[0];
-
-            Map<String, String> header = Http.readHeaderByte(rawI);
-            String token = getToken(header);
-
-            if(verifyToken(writer, token)) {
-                logger.finer("Token exist");
-                switch (requestType) {
-                    case "GET":
-                        logger.finer("Doing Get...");
-                        doGet(writer, rawO, path);
-                        break;
-                    case "POST":
-                        logger.finer("Doing POST...");
-                        doPost(writer, rawI, path, header);
-                        break;
-                    case "DELETE":
-                        logger.finer("Doing DELETE...");
-                        doDelete(writer, path);
+            HttpInputStream rawI = new HttpInputStream(
+                    new MeteredInputStream(client.getInputStream(), METRICS.getBytesIn()));
+            RequestHead head = new RequestHead();
+
+            boolean keepAlive = true;
+            try {
+                for (int served = 0; keepAlive && served < MAX_KEEP_ALIVE_REQUESTS; served++) {
+                    if (!rawI.readHead(head))
                         break;
-                    default:
-                        writer.write(NOT_IMPLEMENTED);
-                        writer.flush();
+                    if(served == MAX_KEEP_ALIVE_REQUESTS - 1)
+                        metered.closeAfterResponse();
+                    keepAlive = serveRequest(writer, rawO, rawI, head, metered);
                 }
+            }catch (HttpParser.HeadTooLargeException e){
+                logger.config(() -> e.getMessage() + " from " + client.getInetAddress());
+                writer.write(HEADER_TOO_LARGE);
+                Http.writeEmptyResponse(writer);
             }
 
             writer.close();
             rawO.close();
             rawI.close();
 
+        }catch (SocketTimeoutException e){
+            logger.fine(() -> "Idle timeout for client " + client.getInetAddress());
         }catch (RuntimeException e){
             logger.log(Level.SEVERE, "RUNTIME EXCEPTION", e);
         }
@@ -324,106 +959,270 @@ public class ResourceServ implements Runnable{
         }finally {
             try {
                 client.close();
-                logger.fine("Closed connection for client " + client.getInetAddress());
+                logger.fine(() -> "Closed connection for client " + client.getInetAddress());
             }catch (IOException ex){
                 logger.log(Level.WARNING, "Can't close socket for " + client.getInetAddress(), ex);
             }
         }
     }
 
-    private void trySaveFile(Writer writer, Path path, int size, InputStream rawI) throws IOException {
-        try{
-            int bytesRead = 0;
-            byte[] bytes = new byte[2048];
-            try(OutputStream fout = new BufferedOutputStream(new FileOutputStream(path.toString()))) {
-                while (bytesRead < size) {
-                    int result = rawI.read(bytes);
-                    if (result == -1) break;
-                    fout.write(bytes, 0, result);
-                    bytesRead += result;
+    /**
+     * Reads the body into {@code file}: socket to direct buffer to file on blocking connections,
+     * through the connection stream otherwise.
+     * @return bytes written, less than {@code size} if the body ended early
+     */
+    private long receiveFile(WritableByteChannel file, long size, BodyInputStream body) throws IOException {
+        ByteBuffer buffer = UPLOAD_BUFFERS.acquire();
+        try(UploadChannel direct = uploadSocket == null ? null : new UploadChannel()){
+            ReadableByteChannel source = body.channel(direct);
+            long position = 0;
+            while (position < size){
+                buffer.clear();
+                if(size - position < buffer.capacity())
+                    buffer.limit((int) (size - position));
+                if(source.read(buffer) < 0)
+                    break;
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    position += file.write(buffer);
+            }
+            return position;
+        }finally {
+            UPLOAD_BUFFERS.release(buffer);
+        }
+    }
+
+    /**
+     * Temp file next to {@code path}, moved over it once complete so readers never see a partial file.
+     * Created with the default permissions, {@link Files#createTempFile} would make it owner-only.
+     */
+    private static Path tempFileFor(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        while (true){
+            try {
+                return Files.createFile(parent.resolve(
+                        UPLOAD_PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong()) + UPLOAD_SUFFIX));
+            }catch (FileAlreadyExistsException e){
+                //Try another name
+            }
+        }
+    }
+
+    /**
+     * Removes upload temp files a crash or kill left in the resource tree, nothing would move them into place.
+     * Runs at start up, before any upload of this server.
+     */
+    static void sweepUploads(){
+        Path root = Paths.get("resource");
+        if(!Files.isDirectory(root))
+            return;
+        int[] removed = {0};
+        try (Stream<Path> files = Files.walk(root)){
+            files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(UPLOAD_PREFIX) && name.endsWith(UPLOAD_SUFFIX) && Files.isRegularFile(file);
+            }).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                    removed[0]++;
+                }catch (IOException e){
+                    logger.log(Level.WARNING, "Can't remove partial upload " + file, e);
                 }
-                fout.flush();
+            });
+        }catch (IOException | UncheckedIOException e){
+            logger.log(Level.WARNING, "Can't sweep partial uploads in " + root, e);
+        }
+        if(removed[0] > 0)
+            logger.info("Removed " + removed[0] + " partial uploads");
+    }
+
+    private static WritableByteChannel hashing(FileChannel file, MessageDigest digest){
+        return digest == null ? file : new DigestChannel(file, digest);
+    }
+
+    /**
+     * Moves a complete upload over {@code path}, through the blob store when uploads are deduplicated.
+     */
+    private static void moveIntoPlace(Path temp, Path path, MessageDigest digest) throws IOException {
+        if(BLOBS != null)
+            BLOBS.put(temp, Hex.encodeHexString(digest.digest()), path);
+        else
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        COMPRESSED_FILES.remove(path);
+        if(HOT_FILES != null)
+            HOT_FILES.invalidate(path);
+    }
+
+    /**
+     * Deletes a resource, releasing its blob when uploads are deduplicated.
+     */
+    private static void removeFile(Path path) throws IOException {
+        if(BLOBS != null)
+            BLOBS.delete(path);
+        else
+            Files.delete(path);
+        COMPRESSED_FILES.remove(path);
+        if(HOT_FILES != null)
+            HOT_FILES.invalidate(path);
+    }
+
+    /**
+     * Saves the body to a temp file and moves it to {@code path}.
+     * @return false if it could not be saved, the error is already answered
+     */
+    private boolean trySaveFile(Writer writer, Path path, long size, BodyInputStream rawI) throws IOException {
+        Path temp = null;
+        try{
+            if(Files.getFileStore(path.toAbsolutePath().getParent()).getUsableSpace() < size){
+                logger.warning(() -> "No space for " + size + " bytes in " + path);
+                writer.write(INSUFFICIENT_STORAGE);
+                Http.writeJSONResponse(writer, NO_SPACE);
+                return false;
             }
-            writer.write(OK);
-            writer.write(baseHeader);
-            writer.flush();
-            logger.fine("Saved file to: " + path);
+            temp = tempFileFor(path);
+            MessageDigest digest = BLOBS == null ? null : BlobStore.newDigest();
+            try(FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long received = receiveFile(hashing(file, digest), size, rawI);
+                if(received < size)
+                    throw new EOFException("Body ended after " + received + " of " + size + " bytes");
+            }
+            moveIntoPlace(temp, path, digest);
+            logger.fine(() -> "Saved file to: " + path);
+            return true;
         }
         catch (IOException e){
-            logger.log(Level.WARNING,"Error writing file");
+            logger.log(Level.WARNING,"Error writing file", e);
+            if(temp != null)
+                Files.deleteIfExists(temp);
             writer.write(ERROR400);
             Http.writeJSONResponse(writer, BAD_REQUEST);
+            return false;
         }
     }
 
-    @SuppressWarnings("deprecated")
-    //For refactoring
-    private void writeMultipart(Writer writer, String content, InputStream rawI) throws IOException{
+    private void deleteFiles(List<Path> files){
+        for(Path file : files){
+            try {
+                removeFile(file);
+            }catch (NoSuchFileException e){
+                //Already gone
+            }catch (IOException e){
+                logger.log(Level.WARNING, "Can't remove " + file, e);
+            }
+        }
+    }
+
+    private void writeMultipart(Writer writer, String content, BodyInputStream rawI) throws IOException{
         logger.finer("Parsing multipart");
 
         String boundary = content.substring(content.indexOf("boundary=") + 9);
-        System.out.println("Boundary = " + boundary);
+        logger.finest(() -> "Boundary = " + boundary);
         byte[] boundaryBytes = boundary.getBytes();
 
-        MultipartStream multipartStream = new MultipartStream(rawI, boundaryBytes);
-        boolean nextPart = multipartStream.skipPreamble();
+        ByteBuffer buffer = UPLOAD_BUFFERS.acquire();
+        UploadChannel direct = uploadSocket == null ? null : new UploadChannel();
+        MultipartScanner multipartStream = new MultipartScanner(rawI.channel(direct), boundaryBytes, buffer);
         boolean wasDir       = false;
         boolean exitNormally = true;
+        String error = BAD_REQUEST;
         String toDir = null;
         List<String> wroteFiles = new ArrayList<>();
+        Set<Path> writableDirs = new HashSet<>();
+        List<Path> createdFiles = new ArrayList<>();
+        List<Resource> granted = new ArrayList<>();
+        boolean overwritten = false;
 
-        while (nextPart){
-            String head = multipartStream.readHeaders();
-            int nameIndex = head.indexOf("name=") + 6;
-            String name = head.substring(nameIndex, head.indexOf("\"", nameIndex + 1));
-            System.out.println("Name = " + name);
+        try {
+            boolean nextPart = multipartStream.skipPreamble();
+            while (nextPart){
+                String head = multipartStream.readHeaders();
+                int nameIndex = head.indexOf("name=") + 6;
+                String name = head.substring(nameIndex, head.indexOf("\"", nameIndex + 1));
+                logger.finest(() -> "Name = " + name);
 
-            if(wasDir && name.equalsIgnoreCase("file")){
-                int fileIndex = head.indexOf("filename=") + 10;
-                String fileName = ("resource/" + toDir + "/" +
-                        head.substring(fileIndex, head.indexOf("\"", fileIndex)))
-                                .replaceAll("[^a-zA-Z0-9_./-]", "");
+                if(wasDir && name.equalsIgnoreCase("file")){
+                    int fileIndex = head.indexOf("filename=") + 10;
+                    String fileName = ("resource/" + toDir + "/" +
+                            head.substring(fileIndex, head.indexOf("\"", fileIndex)))
+                                    .replaceAll("[^a-zA-Z0-9_./-]", "");
 
-                wroteFiles.add(fileName.substring(9));
+                    wroteFiles.add(fileName.substring(9));
 
-                System.out.println("File name = " + fileName);
-                Path path = Paths.get(fileName);
-                if(!access.hasAccess(new Resource(path.getParent(), currentUsername, AccessType.WRITE))){
-                    writer.write(UNAUTHORIZED);
-                    Http.writeJSONResponse(writer, ACCESS_DENIED);
-                    return;
-                }
-                try(FileOutputStream fout = new FileOutputStream(fileName)){
-                    multipartStream.readBodyData(fout);
-                }catch (IOException e){
-                    exitNormally = false;
-                    logger.log(Level.WARNING, "Can't save file", e);
+                    logger.finest(() -> "File name = " + fileName);
+                    Path path = Paths.get(fileName);
+                    Path parent = path.getParent();
+                    //Parts are streamed, a directory is only known once its part arrives and is checked once
+                    if(!writableDirs.contains(parent)){
+                        if(!access.hasAccess(new Resource(parent, currentUsername, AccessType.WRITE))){
+                            deleteFiles(createdFiles);
+                            writer.write(UNAUTHORIZED);
+                            Http.writeJSONResponse(writer, ACCESS_DENIED);
+                            return;
+                        }
+                        writableDirs.add(parent);
+                    }
+                    boolean existed = Files.exists(path);
+                    Path temp = tempFileFor(path);
+                    try {
+                        MessageDigest digest = BLOBS == null ? null : BlobStore.newDigest();
+                        try(FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)){
+                            multipartStream.readBodyData(hashing(file, digest));
+                        }
+                        moveIntoPlace(temp, path, digest);
+                    }finally {
+                        Files.deleteIfExists(temp);
+                    }
+                    if(existed){
+                        //Access rows of an overwritten file are already there
+                        logger.log(Level.WARNING, "File was overriden " + fileName);
+                        overwritten = true;
+                    }else {
+                        createdFiles.add(path);
+                        granted.add(new Resource(path, currentUsername, AccessType.values()));
+                    }
+                }else if(name.equalsIgnoreCase("to_dir")){
+                    ByteArrayOutputStream dirStream = new ByteArrayOutputStream();
+                    multipartStream.readBodyData(Channels.newChannel(dirStream));
+                    toDir = dirStream.toString();
+                    if(logger.isLoggable(Level.FINEST))
+                        logger.finest("To_dir = " + toDir);
+                    wasDir = true;
                 }
-                try {
-                    access.addAccess(new Resource(Paths.get(fileName), currentUsername, AccessType.values()));
-                }catch (SQLIntegrityConstraintViolationException e){
-                    logger.log(Level.WARNING, "File was overriden", e);
-                    writer.write(ERROR400);
-                    Http.writeJSONResponse(writer, FILE_EXIST);
-                }catch (Exception e){
-                    logger.log(Level.WARNING, "Error adding access", e);
-                    writer.write(ERROR400);
-                    Http.writeJSONResponse(writer, ADDING_ACCESS_ERR);
+                else {
                     exitNormally = false;
                     break;
                 }
-            }else if(name.equalsIgnoreCase("to_dir")){
-                ByteArrayOutputStream dirStream = new ByteArrayOutputStream();
-                multipartStream.readBodyData(dirStream);
-                toDir = dirStream.toString();
-                System.out.println("To_dir = " + toDir);
-                wasDir = true;
+                nextPart = multipartStream.readBoundary();
             }
-            else {
-                exitNormally = false;
-                break;
-            }
-            nextPart = multipartStream.readBoundary();
+        }catch (IOException e){
+            //The rest of the body can't be parsed, nothing of this upload is kept
+            logger.log(Level.WARNING, "Can't save file", e);
+            deleteFiles(createdFiles);
+            writer.write(ERROR400);
+            Http.writeJSONResponse(writer, BAD_REQUEST);
+            return;
+        }finally {
+            if(direct != null)
+                direct.close();
+            UPLOAD_BUFFERS.release(buffer);
+        }
+
+        //All rows of the upload go in one transaction, files are removed if it fails
+        try {
+            access.addAccessBatch(granted);
+        }catch (SQLIntegrityConstraintViolationException e){
+            logger.log(Level.WARNING, "File was overriden", e);
+            deleteFiles(createdFiles);
+            overwritten = true;
+        }catch (Exception e){
+            logger.log(Level.WARNING, "Error adding access", e);
+            deleteFiles(createdFiles);
+            exitNormally = false;
+            error = ADDING_ACCESS_ERR;
+        }
+        if(overwritten && exitNormally){
+            exitNormally = false;
+            error = FILE_EXIST;
         }
         if(exitNormally) {
             writer.write(OK);
@@ -432,20 +1231,24 @@ public class ResourceServ implements Runnable{
             Http.writeJSONResponse(writer, jsonObject.toString());
         }else{
             writer.write(ERROR400);
-            Http.writeJSONResponse(writer, BAD_REQUEST);
+            Http.writeJSONResponse(writer, error);
         }
-        System.out.println("Success");
+        logger.finer("Success");
     }
 
-    private void writeResource(Writer writer, Map<String, String> header, Path path, InputStream rawI)
+    private void writeResource(Writer writer, Map<String, String> header, Path path, BodyInputStream rawI)
             throws IOException{
         try{
             String sizeStr = header.get("Content-Length");
-            int size = Integer.parseInt(sizeStr);
-            System.out.println("Size = " + sizeStr);
-            trySaveFile(writer, path, size, rawI);
+            long size = Long.parseLong(sizeStr);
+            logger.finest(() -> "Size = " + sizeStr);
+            if(!trySaveFile(writer, path, size, rawI))
+                return;
             try {
                 access.addAccess(new Resource(path, currentUsername, AccessType.values()));
+                writer.write(OK);
+                writer.write(baseHeader);
+                Http.writeEmptyResponse(writer);
             }catch (SQLIntegrityConstraintViolationException e){
                 logger.log(Level.WARNING, "File already exist", e);
                 writer.write(ERROR400);
@@ -455,7 +1258,7 @@ public class ResourceServ implements Runnable{
                 writer.write(ERROR400);
                 Http.writeJSONResponse(writer, ADDING_ACCESS_ERR);
             }
-            System.out.println("Success");
+            logger.finer("Success");
         }catch (NumberFormatException | NullPointerException e){
             logger.log(Level.WARNING, BAD_REQUEST);
             writer.write(ERROR400);
@@ -463,7 +1266,7 @@ public class ResourceServ implements Runnable{
         }
     }
 
-    private void saveResource(Writer writer, InputStream rawI, String request, Map<String, String> header) throws IOException{
+    private void saveResource(Writer writer, BodyInputStream rawI, String request, Map<String, String> header) throws IOException{
         String content = header.get("Content-Type");
         if (content != null && content.startsWith("multipart/form-data") && content.contains("boundary=")) {
             writeMultipart(writer, content, rawI);
@@ -497,12 +1300,12 @@ public class ResourceServ implements Runnable{
 
                 Path resPath = Paths.get(path);
                 Resource resource = new Resource(resPath, currentUsername, AccessType.GRANT);
-                System.out.println(resource);
+                logger.finest(resource::toString);
                 if(!verifyAccess(resource)){
                     writer.write(UNAUTHORIZED);
                     Http.writeJSONResponse(writer, ACCESS_DENIED);
                 }else{
-                    System.out.println("Access is right, adding new access to user");
+                    logger.finer("Access is right, adding new access to user");
                     Resource granted = new Resource(resPath, toUser, accessTypes);
                     try{
                         access.addAccess(granted);
@@ -534,14 +1337,14 @@ public class ResourceServ implements Runnable{
         }
 
     }
-    private void doPost(Writer writer, InputStream rawI, String request, Map<String, String> header)
+    private void doPost(Writer writer, BodyInputStream rawI, String request, Map<String, String> header)
             throws IOException{
 
         if(request.startsWith("resource")) {
-            System.out.println("Saving resource");
+            logger.finer("Saving resource");
             saveResource(writer, rawI, request, header);
         }else if(request.startsWith("access")){
-            System.out.println("Adding access");
+            logger.finer("Adding access");
             addAccess(writer, rawI, header);
         }else{
             writer.write(FORBIDDEN);
@@ -557,14 +1360,16 @@ public class ResourceServ implements Runnable{
         return null;
     }
 
-    private boolean tokenIsValid(DecodedJWT decodedToken){
+    static boolean tokenIsValid(DecodedJWT decodedToken){
         try {
-            ALGORITHM.verify(decodedToken);
-        }catch (SignatureVerificationException e){
+            KEYS.verify(decodedToken);
+        }catch (JWTVerificationException e){
             return false;
         }
 
+        Date expiresAt = decodedToken.getExpiresAt();
         return decodedToken.getClaim("username").asString() != null
-                && decodedToken.getClaim("iss").asString().equals("sample-auth-server");
+                && "sample-auth-server".equals(decodedToken.getClaim("iss").asString())
+                && (expiresAt == null || expiresAt.after(new Date()));
     }
 }
@@ -0,0 +1,119 @@
+package resource;
+
+import database.ConnectionPool;
+import utils.FineLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static resource.Server.*;
+
+/**
+ * Non-blocking front end for {@link ResourceServ}. A few selector threads own all
+ * connections and only complete requests reach the worker pool, which does the blocking
+ * part (token check, JDBC, file I/O).
+ */
+public class SelectorServer {
+
+    private final int port;
+    private final int query;
+    private final InetAddress address;
+    private static Logger errorLog;
+    private static Logger requests;
+
+    public static final int NUMBER_OF_EVENT_LOOPS
+            = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    static{
+        errorLog = FineLogger.getLogger("Error");
+        requests = FineLogger.getLogger("Requests");
+    }
+
+
+    public SelectorServer(int port, int query, InetAddress address) {
+        this.port = port;
+        this.query = query;
+        this.address = address;
+    }
+
+    private static EventLoop[] startEventLoops() throws IOException{
+        EventLoop[] loops = new EventLoop[NUMBER_OF_EVENT_LOOPS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return loops;
+    }
+
+    private static void accept(ServerSocketChannel serverChannel, EventLoop loop,
+                               ExecutorService workers, Access<String, Resource> access) throws IOException{
+        SocketChannel client = serverChannel.accept();
+        if(client == null)
+            return;
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        requests.fine(() -> "Client " + client.socket().getInetAddress() + " connected");
+
+        NioConnection connection = new NioConnection(client, loop, workers, access);
+        loop.execute(() -> {
+            try {
+                connection.register();
+            }catch (IOException e){
+                requests.log(Level.CONFIG, "Client disconnected", e);
+                connection.close();
+            }
+        });
+    }
+
+    public void start(){
+        ExecutorService workers = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            Selector acceptSelector = Selector.open();
+            ConnectionPool pool = newConnectionPool()){
+
+            Access<String, Resource> access = newAccess(pool);
+            registerMetrics(workers, pool, access);
+            if(ResourceServ.BLOBS != null)
+                ResourceServ.BLOBS.sweep();
+            ResourceServ.sweepUploads();
+            serverChannel.bind(new InetSocketAddress(address, port), query);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            EventLoop[] loops = startEventLoops();
+
+            requests.fine(SelectorServer.class.getName() + " started on port "
+                    + serverChannel.socket().getLocalPort() + " address: " + serverChannel.socket().getInetAddress());
+
+            int next = 0;
+            while (true){
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                try {
+                    accept(serverChannel, loops[next], workers, access);
+                    next = (next + 1) % loops.length;
+                }catch (IOException ex){
+                    requests.log(Level.CONFIG, "Client disconnected", ex);
+                }
+            }
+
+        }catch (IOException ex){
+            errorLog.log(Level.SEVERE, "Error init server socket", ex);
+        }catch (SQLException ex){
+            errorLog.log(Level.SEVERE, "Can't connect to database", ex);
+        }
+    }
+}
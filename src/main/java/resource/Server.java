@@ -1,17 +1,21 @@
 package resource;
 
+import database.AccessIndex;
+import database.ConnectionPool;
 import database.Database;
+import utils.AsyncHandler;
 import utils.FineLogger;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.channels.ServerSocketChannel;
 import java.sql.SQLException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,14 +25,22 @@ public class Server {
     private final int port;
     private final int query;
     private final InetAddress address;
+    private final boolean virtualThreads;
     private static Logger errorLog;
     private static Logger requests ;
 
 
-    public static final String URL = "jdbc:mysql://localhost:3306/mydb?allowPublicKeyRetrieval=true&useSSL=false";
-    public static final String USERNAME = "root";
-    public static final String PASSWORD = "cfif";
+    public static final String URL = System.getProperty("db.url",
+            "jdbc:mysql://localhost:3306/mydb?allowPublicKeyRetrieval=true&useSSL=false&rewriteBatchedStatements=true");
+    public static final String USERNAME = System.getProperty("db.user", "root");
+    public static final String PASSWORD = System.getProperty("db.password", "cfif");
     public static final int NUMBER_OF_THREADS = 10;
+    public static final int POOL_SIZE = Integer.getInteger("db.pool.size", NUMBER_OF_THREADS);
+    public static final long POOL_ACQUIRE_TIMEOUT = Long.getLong("db.pool.acquireTimeout", 5_000);
+    public static final long POOL_LEAK_THRESHOLD = Long.getLong("db.pool.leakThreshold", 60_000);
+    public static final int ACCESS_CACHE_SIZE = Integer.getInteger("access.cache.size", 10_000);
+    public static final long ACCESS_CACHE_TTL = Long.getLong("access.cache.ttl", 30_000);
+    public static final boolean ACCESS_INDEX = Boolean.parseBoolean(System.getProperty("access.index", "true"));
 
     static{
         errorLog = FineLogger.getLogger("Error");
@@ -37,20 +49,105 @@ public class Server {
 
 
     public Server(int port, int query, InetAddress address) {
+        this(port, query, address, false);
+    }
+
+    /**
+     * @param virtualThreads run every connection on its own virtual thread instead of
+     *                       the fixed pool of {@link #NUMBER_OF_THREADS} platform threads
+     */
+    public Server(int port, int query, InetAddress address, boolean virtualThreads) {
         this.port = port;
         this.query = query;
         this.address = address;
+        this.virtualThreads = virtualThreads;
+    }
+
+    static ConnectionPool newConnectionPool() throws SQLException{
+        return new ConnectionPool(URL, USERNAME, PASSWORD, POOL_SIZE, POOL_ACQUIRE_TIMEOUT, POOL_LEAK_THRESHOLD);
+    }
+
+    /**
+     * The in-memory index already answers without MySQL, the decision cache is only used without it:
+     * {@code -Daccess.index=false} checks every access in MySQL through an {@link AccessCache} of
+     * {@code access.cache.size} decisions trusted for {@code access.cache.ttl} ms, a size of 0 disables it.
+     */
+    static Access<String, Resource> newAccess(ConnectionPool pool) throws SQLException{
+        Database database = new Database(pool);
+        if(ACCESS_INDEX)
+            return new AccessIndex(database, pool);
+        if(ACCESS_CACHE_SIZE <= 0)
+            return database;
+        return new AccessCache(database, ACCESS_CACHE_SIZE, ACCESS_CACHE_TTL);
+    }
+
+    /**
+     * Worker, connection pool and cache numbers shown by /metrics. Virtual threads have no queue,
+     * requests_in_flight covers them.
+     */
+    static void registerMetrics(ExecutorService workers, ConnectionPool pool, Access<String, Resource> access){
+        if(workers instanceof ThreadPoolExecutor){
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) workers;
+            ResourceServ.METRICS.gauge("executor_queue_depth", "Tasks waiting for a worker thread.",
+                    () -> executor.getQueue().size());
+            ResourceServ.METRICS.gauge("executor_active_workers", "Worker threads running a task.",
+                    executor::getActiveCount);
+        }
+        ResourceServ.METRICS.gauge("db_pool_active_connections", "Database connections lent out.",
+                pool::getActiveConnections);
+        ResourceServ.METRICS.gauge("db_pool_waiting_threads", "Threads waiting for a database connection.",
+                pool::getWaitingThreads);
+        ResourceServ.METRICS.counter("token_cache_hits", "Bearer tokens found verified in the cache.",
+                ResourceServ.TOKEN_CACHE::getHitCount);
+        ResourceServ.METRICS.counter("token_cache_misses", "Bearer tokens that needed a signature check.",
+                ResourceServ.TOKEN_CACHE::getMissCount);
+        if(access instanceof AccessCache){
+            AccessCache accessCache = (AccessCache) access;
+            ResourceServ.METRICS.counter("access_cache_hits", "Access checks answered from the cache.",
+                    accessCache::getHitCount);
+            ResourceServ.METRICS.counter("access_cache_misses", "Access checks sent to the database.",
+                    accessCache::getMissCount);
+            ResourceServ.METRICS.counter("access_cache_evictions", "Cached access decisions evicted for space.",
+                    accessCache::getEvictionCount);
+            ResourceServ.METRICS.counter("access_cache_invalidations",
+                    "Cached access decisions dropped by grants and deletes.", accessCache::getInvalidationCount);
+        }
+        ResourceServ.METRICS.gauge("compressed_cache_bytes", "Bytes of precompressed file variants on disk.",
+                ResourceServ.COMPRESSED_FILES::getUsedBytes);
+        HotFileCache hotFiles = ResourceServ.HOT_FILES;
+        if(hotFiles != null){
+            ResourceServ.METRICS.gauge("hot_cache_bytes", "Bytes of file contents held in memory.",
+                    hotFiles::getUsedBytes);
+            ResourceServ.METRICS.counter("hot_cache_hits", "File sends served from memory.", hotFiles::getHits);
+            ResourceServ.METRICS.counter("hot_cache_misses", "File sends that found no cached contents.",
+                    hotFiles::getMisses);
+        }
+        ResourceServ.METRICS.counter("log_dropped_records", "Log records dropped because the log buffer was full.",
+                AsyncHandler::totalDropped);
+    }
+
+    static ExecutorService newExecutor(boolean virtualThreads){
+        return virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(NUMBER_OF_THREADS);
     }
 
 
     public void start(){
-        ExecutorService service = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+        ExecutorService service = newExecutor(virtualThreads);
+
 
+        //Opened through a channel so accepted sockets can use FileChannel.transferTo
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            ConnectionPool pool = newConnectionPool()){
 
-        try(ServerSocket serverSocket = new ServerSocket(port, query, address);
-            Connection connection = DriverManager.getConnection(URL, USERNAME, PASSWORD)){
+            ServerSocket serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(address, port), query);
 
-            Database database = new Database(connection);
+            Access<String, Resource> access = newAccess(pool);
+            registerMetrics(service, pool, access);
+            if(ResourceServ.BLOBS != null)
+                ResourceServ.BLOBS.sweep();
+            ResourceServ.sweepUploads();
 
             requests.fine(ResourceServ.class.getName() + " started on port " +
                     + serverSocket.getLocalPort() + " address: " + serverSocket.getInetAddress());
@@ -58,8 +155,10 @@ public class Server {
             while (true){
                 try {
                     Socket client = serverSocket.accept();
-                    requests.fine("Client " + client.getInetAddress() + " connected");
-                    Runnable requestFile = new ResourceServ(client, database);
+                    //Head and body go out as separate writes, Nagle would hold the body for the delayed ACK
+                    client.setTcpNoDelay(true);
+                    requests.fine(() -> "Client " + client.getInetAddress() + " connected");
+                    Runnable requestFile = new ResourceServ(client, access);
                     service.submit(requestFile);
                 }catch (IOException ex){
                     requests.log(Level.CONFIG, "Client disconnected", ex);
@@ -25,18 +25,27 @@ public class ServerMain {
     public static void main(String[] args) throws UnknownHostException
     {
         int port = 0;
+        String mode = "blocking";
 
         if(args.length == 0)
             port = 6790;
-        else if(args.length == 1)
+        else if(args.length <= 2)
             port = parsePort(args[0]);
+        if(args.length == 2)
+            mode = args[1];
 
-        if(port == -1 || args.length > 1){
-            System.out.println("USAGE: authorization.Server [port_number]");
+        if(port == -1 || args.length > 2
+                || !(mode.equals("blocking") || mode.equals("virtual") || mode.equals("nio"))){
+            System.out.println("USAGE: resource.Server [port_number] [blocking|virtual|nio]");
             System.exit(-1);
         }
 
-        Server server = new Server(port, 0, InetAddress.getLoopbackAddress());
-        server.start();
+        if(mode.equals("nio")){
+            SelectorServer server = new SelectorServer(port, 0, InetAddress.getLoopbackAddress());
+            server.start();
+        }else {
+            Server server = new Server(port, 0, InetAddress.getLoopbackAddress(), mode.equals("virtual"));
+            server.start();
+        }
     }
 }
@@ -0,0 +1,130 @@
+package resource;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers bearer tokens whose signature was already verified, so repeated requests
+ * with the same token skip the RSA public-key operation. Entries are keyed by the SHA-256
+ * of the raw token and live until the token's "exp" or the configured max age, whichever
+ * comes first. Only verified tokens are ever stored.
+ */
+public class TokenCache {
+    private static final int SEGMENTS = 8;
+
+    private final long maxAgeMillis;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TokenCache(int maxSize, long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    private static ByteBuffer key(String token){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(digest.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Segment segmentFor(ByteBuffer key){
+        return segments[(key.get(0) & 0xFF) % SEGMENTS];
+    }
+
+    /**
+     * @return verified token or null if it is not cached or has expired
+     */
+    public DecodedJWT get(String token){
+        ByteBuffer key = key(token);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Entry entry = segment.entries.get(key);
+            if(entry != null && System.currentTimeMillis() < entry.expiresAt){
+                hits.increment();
+                return entry.jwt;
+            }
+            if(entry != null)
+                segment.entries.remove(key);
+        }finally {
+            segment.lock.unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a token after its signature and claims have been checked.
+     */
+    public void put(String token, DecodedJWT jwt){
+        long expiresAt = System.currentTimeMillis() + maxAgeMillis;
+        Date exp = jwt.getExpiresAt();
+        if(exp != null)
+            expiresAt = Math.min(expiresAt, exp.getTime());
+        if(expiresAt <= System.currentTimeMillis())
+            return;
+
+        ByteBuffer key = key(token);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            segment.entries.put(key, new Entry(jwt, expiresAt));
+        }finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public long getHitCount(){
+        return hits.sum();
+    }
+
+    public long getMissCount(){
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TokenCache[hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", maxAge=" + TimeUnit.MILLISECONDS.toSeconds(maxAgeMillis) + "s]";
+    }
+
+    private static final class Entry {
+        private final DecodedJWT jwt;
+        private final long expiresAt;
+
+        Entry(DecodedJWT jwt, long expiresAt) {
+            this.jwt = jwt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<ByteBuffer, Entry> entries;
+
+        Segment(int maxSize) {
+            entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package resource;
+
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import utils.FineLogger;
+import utils.TokenKeys;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Public keys tokens are verified with, chosen by the token's {@code kid} header. Several keys
+ * can be configured at once, so tokens signed with the old key stay valid while the
+ * authorization server moves to a new one. Tokens without a {@code kid} were issued before
+ * key ids existed and are checked with the default key.
+ */
+public class VerificationKeys {
+    private static final Logger logger = FineLogger.getLogger(VerificationKeys.class.getName());
+
+    private final Map<String, Algorithm> algorithms;
+    private final Algorithm defaultAlgorithm;
+
+    public VerificationKeys(Map<String, Algorithm> algorithms, String defaultKid) {
+        this.algorithms = algorithms;
+        this.defaultAlgorithm = defaultKid == null ? null : algorithms.get(defaultKid);
+    }
+
+    /**
+     * @param config keys as {@code kid:ALG:path,...}, see {@link TokenKeys#parse}
+     * @param defaultKid key for tokens without a kid, the first configured key if null
+     */
+    public static VerificationKeys fromConfig(String config, String defaultKid){
+        Map<String, Algorithm> algorithms = new HashMap<>();
+        for(TokenKeys.KeySpec spec : TokenKeys.parse(config)){
+            try {
+                algorithms.put(spec.getKid(), TokenKeys.verifying(spec));
+                if(defaultKid == null)
+                    defaultKid = spec.getKid();
+                logger.config("Verifying tokens with " + spec);
+            }catch (IOException e){
+                logger.log(Level.WARNING, "Public key does not exist " + spec, e);
+            }catch (GeneralSecurityException | ClassCastException e){
+                logger.log(Level.WARNING, "Wrong public key " + spec, e);
+            }
+        }
+        return new VerificationKeys(algorithms, defaultKid);
+    }
+
+    /**
+     * Checks the signature with the key the token names. The token's alg has to be the
+     * algorithm of that key, so a token can't pick a weaker way to be checked.
+     * @throws JWTVerificationException if the key is unknown, the alg does not match or the signature is wrong
+     */
+    public void verify(DecodedJWT token){
+        String kid = token.getKeyId();
+        Algorithm algorithm = kid == null ? defaultAlgorithm : algorithms.get(kid);
+        if(algorithm == null)
+            throw new JWTVerificationException("Unknown key id " + kid);
+        if(!algorithm.getName().equals(token.getAlgorithm()))
+            throw new JWTVerificationException("Token alg " + token.getAlgorithm() + " does not match key " + kid);
+        algorithm.verify(token);
+    }
+}
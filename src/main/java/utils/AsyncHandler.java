@@ -0,0 +1,160 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands records to a background thread through a bounded lock-free ring buffer, so logging
+ * threads never wait on the target's lock or its I/O. When the buffer is full the record is
+ * dropped and counted; the flusher reports drops as a warning once it catches up.
+ * The caller's class and method are not inferred, records show the logger name instead.
+ */
+public final class AsyncHandler extends Handler {
+    private static final LongAdder TOTAL_DROPPED = new LongAdder();
+
+    private final Handler target;
+    private final int mask;
+    private final AtomicReferenceArray<LogRecord> records;
+    //Per slot: equal to the position when the slot is free to write, position + 1 when it holds a record
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final LongAdder dropped = new LongAdder();
+    private long reportedDrops;
+    private final long idleNanos;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Thread flusher;
+
+    /**
+     * @param capacity records kept before new ones are dropped, rounded up to a power of two
+     * @param idleMillis how long the flusher sleeps when there is nothing to write
+     */
+    public AsyncHandler(Handler target, int capacity, long idleMillis) {
+        this.target = target;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = size - 1;
+        this.records = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++)
+            sequences.set(i, i);
+        this.idleNanos = idleMillis * 1_000_000L;
+        setLevel(Level.ALL);
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @return records dropped by all async handlers since start
+     */
+    public static long totalDropped(){
+        return TOTAL_DROPPED.sum();
+    }
+
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if(closed.get() || !isLoggable(record))
+            return;
+        while (true){
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if(sequence == position){
+                if(tail.compareAndSet(position, position + 1)){
+                    records.lazySet(index, record);
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            }else if(sequence < position){
+                dropped.increment();
+                TOTAL_DROPPED.increment();
+                return;
+            }
+            //Another thread took this position, try the next one
+        }
+    }
+
+    /**
+     * Writes every record published so far, only called from the flusher or once it has stopped.
+     * @return number of records written
+     */
+    private int drain(){
+        int written = 0;
+        while (true){
+            int index = (int) head & mask;
+            if(sequences.get(index) != head + 1)
+                break;
+            LogRecord record = records.get(index);
+            records.lazySet(index, null);
+            sequences.set(index, head + mask + 1);
+            head++;
+            write(record);
+            written++;
+        }
+        long drops = dropped.sum();
+        if(drops != reportedDrops){
+            LogRecord warning = new LogRecord(Level.WARNING,
+                    "Log buffer full, dropped " + (drops - reportedDrops) + " records");
+            warning.setLoggerName(AsyncHandler.class.getName());
+            reportedDrops = drops;
+            write(warning);
+            written++;
+        }
+        if(written > 0)
+            target.flush();
+        return written;
+    }
+
+    private void write(LogRecord record){
+        try {
+            target.publish(record);
+        }catch (RuntimeException e){
+            reportError("Can't write log record", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    private void flushLoop(){
+        while (!closed.get()){
+            if(drain() == 0)
+                LockSupport.parkNanos(idleNanos);
+        }
+    }
+
+    /**
+     * Records are written by the flusher, this only wakes it up.
+     */
+    @Override
+    public void flush() {
+        LockSupport.unpark(flusher);
+    }
+
+    /**
+     * Stops the flusher, writes what is left and closes the target. Called by the log manager on shutdown.
+     */
+    @Override
+    public void close() {
+        if(!closed.compareAndSet(false, true))
+            return;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(1000);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if(!flusher.isAlive())
+            drain();
+        target.close();
+    }
+}
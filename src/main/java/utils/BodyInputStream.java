@@ -0,0 +1,138 @@
+package utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Request body view over a persistent connection stream. Reads stop at the
+ * declared length so that the next pipelined request is left untouched, and
+ * {@link #close()} never closes the underlying socket stream.
+ */
+public class BodyInputStream extends FilterInputStream {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private long remaining;
+
+    public BodyInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(remaining <= 0)
+            return -1;
+        int c = in.read();
+        if(c != -1)
+            remaining--;
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(remaining <= 0)
+            return -1;
+        int result = in.read(b, off, (int) Math.min(len, remaining));
+        if(result > 0)
+            remaining -= result;
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Channel over the rest of the body. Over an {@link HttpInputStream} the buffered bytes come first
+     * and then {@code direct}, the connection's socket channel, is read straight into the caller's buffer.
+     * Without it bytes are copied from the stream.
+     */
+    public ReadableByteChannel channel(ReadableByteChannel direct){
+        HttpInputStream buffered = direct != null && in instanceof HttpInputStream ? (HttpInputStream) in : null;
+        return new ReadableByteChannel() {
+            private byte[] bytes;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if(remaining <= 0)
+                    return -1;
+                int limit = dst.limit();
+                if(dst.remaining() > remaining)
+                    dst.limit(dst.position() + (int) remaining);
+                try {
+                    int result;
+                    if(buffered != null){
+                        result = buffered.readBuffered(dst);
+                        if(result == 0)
+                            result = direct.read(dst);
+                    }else if(dst.hasArray()){
+                        result = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                        if(result > 0)
+                            dst.position(dst.position() + result);
+                    }else {
+                        if(bytes == null)
+                            bytes = new byte[COPY_BUFFER_SIZE];
+                        result = in.read(bytes, 0, Math.min(bytes.length, dst.remaining()));
+                        if(result > 0)
+                            dst.put(bytes, 0, result);
+                    }
+                    if(result > 0)
+                        remaining -= result;
+                    return result;
+                }finally {
+                    dst.limit(limit);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+                //Connection is owned by the server loop
+            }
+        };
+    }
+
+    /**
+     * Skips the unread part of the body so the connection can be reused.
+     * @return false if more than {@code maxDrain} bytes were left or the stream ended early
+     */
+    public boolean drain(long maxDrain) throws IOException {
+        if(remaining > maxDrain)
+            return false;
+        byte[] bytes = new byte[1024];
+        while (remaining > 0){
+            if(read(bytes, 0, bytes.length) == -1)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        //Connection stream is owned by the server loop
+    }
+}
@@ -0,0 +1,88 @@
+package utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static utils.ServerConstants.NEW_LINE;
+
+/**
+ * Writes a "Transfer-Encoding: chunked" body over a persistent connection stream.
+ * Small writes are collected into one chunk, {@link #finish()} writes the last chunk
+ * and {@link #close()} never closes the underlying socket stream.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    private final byte[] buffer;
+    private int count;
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        super(out);
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(count == buffer.length)
+            writeChunk();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(finished)
+            throw new IOException("Chunked body is already finished");
+        while (len > 0){
+            if(count == buffer.length)
+                writeChunk();
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if(count == 0)
+            return;
+        out.write((Integer.toHexString(count) + NEW_LINE).getBytes(StandardCharsets.US_ASCII));
+        out.write(buffer, 0, count);
+        out.write(NEW_LINE.getBytes(StandardCharsets.US_ASCII));
+        count = 0;
+    }
+
+    /**
+     * Sends the buffered bytes as a chunk, an empty buffer sends nothing since
+     * a zero-length chunk would end the body.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    /**
+     * Ends the body.
+     */
+    public void finish() throws IOException {
+        if(finished)
+            return;
+        writeChunk();
+        finished = true;
+        out.write(("0" + NEW_LINE + NEW_LINE).getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
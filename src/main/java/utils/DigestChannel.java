@@ -0,0 +1,39 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Updates a digest with every byte written through it, so content is hashed in the same pass that stores it.
+ */
+public class DigestChannel implements WritableByteChannel {
+    private final WritableByteChannel out;
+    private final MessageDigest digest;
+
+    public DigestChannel(WritableByteChannel out, MessageDigest digest) {
+        this.out = out;
+        this.digest = digest;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int start = src.position();
+        int written = out.write(src);
+        ByteBuffer done = src.duplicate();
+        done.position(start).limit(start + written);
+        digest.update(done);
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return out.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,30 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reuses direct buffers, which are costly to allocate and only freed by the GC.
+ * Buffers beyond {@code maxPooled} are dropped on release.
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return cleared buffer of the pool's size
+     */
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer){
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,64 @@
+package utils;
+
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.SignatureGenerationException;
+import com.auth0.jwt.exceptions.SignatureVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+
+/**
+ * Ed25519 signatures (JWS "EdDSA", RFC 8037), which java-jwt does not provide.
+ * Uses the JDK's own Ed25519 provider.
+ */
+public class EdDSAAlgorithm extends Algorithm {
+    private static final String SIGNATURE = "Ed25519";
+
+    private final PublicKey publicKey;
+    private final PrivateKey privateKey;
+
+    /**
+     * Either key may be null when the algorithm is only used to sign or only to verify.
+     */
+    public EdDSAAlgorithm(PublicKey publicKey, PrivateKey privateKey) {
+        super("EdDSA", SIGNATURE);
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+    }
+
+    @Override
+    public void verify(DecodedJWT jwt) throws SignatureVerificationException {
+        if(publicKey == null)
+            throw new SignatureVerificationException(this, new IllegalStateException("No public key"));
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE);
+            signature.initVerify(publicKey);
+            signature.update((jwt.getHeader() + "." + jwt.getPayload()).getBytes(StandardCharsets.UTF_8));
+            if(!signature.verify(Base64.getUrlDecoder().decode(jwt.getSignature())))
+                throw new SignatureVerificationException(this);
+        }catch (GeneralSecurityException | IllegalArgumentException e){
+            throw new SignatureVerificationException(this, e);
+        }
+    }
+
+    //Still the method JWT.sign calls, the header/payload variant only joins them and delegates here
+    @Override
+    @SuppressWarnings("deprecation")
+    public byte[] sign(byte[] contentBytes) throws SignatureGenerationException {
+        if(privateKey == null)
+            throw new SignatureGenerationException(this, new IllegalStateException("No private key"));
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE);
+            signature.initSign(privateKey);
+            signature.update(contentBytes);
+            return signature.sign();
+        }catch (GeneralSecurityException e){
+            throw new SignatureGenerationException(this, e);
+        }
+    }
+}
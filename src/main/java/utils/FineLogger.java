@@ -2,33 +2,60 @@ package utils;
 
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.*;
 
+/**
+ * Loggers writing to the console and optionally to a file through {@link AsyncHandler}s.
+ * Handlers are shared: one for the console and one per file, each logger gets them once.
+ * Level is set with -Dlog.level (FINER by default), the buffer size with -Dlog.buffer.
+ */
 public class FineLogger{
+    private static final Level LEVEL = Level.parse(System.getProperty("log.level", "FINER"));
+    private static final int BUFFER_SIZE = Integer.getInteger("log.buffer", 8192);
+    private static final long IDLE_MILLIS = Long.getLong("log.flushMillis", 10);
+
+    private static final Handler CONSOLE = async(new ConsoleHandler());
+    private static final Map<String, Handler> FILES = new ConcurrentHashMap<>();
+    private static final Set<String> CONFIGURED = ConcurrentHashMap.newKeySet();
 
     private FineLogger(){
 
     }
+
+    private static Handler async(Handler target){
+        target.setLevel(Level.ALL);
+        return new AsyncHandler(target, BUFFER_SIZE, IDLE_MILLIS);
+    }
+
     public static Logger getLogger(String name){
         Logger logger = Logger.getLogger(name);
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setLevel(Level.ALL);
-        logger.addHandler(handler);
-        logger.setLevel(Level.FINER);
-        logger.setUseParentHandlers(false);
+        if(CONFIGURED.add(name)){
+            logger.addHandler(CONSOLE);
+            logger.setLevel(LEVEL);
+            logger.setUseParentHandlers(false);
+        }
         return logger;
     }
 
     public static Logger getLogger(String name, String fileName){
         Logger log = getLogger(name);
-        try {
-            FileHandler fout = new FileHandler(fileName);
-            fout.setFormatter(new SimpleFormatter());
-            fout.setLevel(Level.ALL);
-            log.addHandler(fout);
-        }catch (IOException e){
-            System.err.println("Error logging");
-        }
+        if(!CONFIGURED.add(name + "\n" + fileName))
+            return log;
+        Handler file = FILES.computeIfAbsent(fileName, n -> {
+            try {
+                FileHandler fout = new FileHandler(n);
+                fout.setFormatter(new SimpleFormatter());
+                return async(fout);
+            }catch (IOException e){
+                System.err.println("Error logging");
+                return null;
+            }
+        });
+        if(file != null)
+            log.addHandler(file);
         return log;
     }
 }
@@ -1,20 +1,53 @@
 package utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static utils.ServerConstants.*;
 import static utils.ServerConstants.NEW_LINE;
 
 public class Http {
 
+    /**
+     * Inclusive byte range of a file, as in "Range: bytes=start-end".
+     */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length(){
+            return end - start + 1;
+        }
+
+        public String contentRange(long size){
+            return "bytes " + start + "-" + end + "/" + size;
+        }
+    }
+
     private Http(){
 
     }
@@ -93,6 +126,111 @@ public class Http {
         writer.flush();
     }
 
+    /**
+     * Writes a JSON body in the given content coding.
+     * @param encoding "gzip", "deflate" or null for the plain body
+     */
+    public static void writeJSONResponse(Writer writer, OutputStream rawO, String json, String encoding)
+            throws IOException{
+        if(encoding == null){
+            writeJSONResponse(writer, json);
+            return;
+        }
+        byte[] encoded = encode(json.getBytes(StandardCharsets.UTF_8), encoding);
+        writer.write(VARY_ACCEPT_ENCODING);
+        writer.write(CONTENT_ENCODING + encoding + NEW_LINE);
+        writeContentHeaders(writer, encoded.length, "application/json");
+        writer.flush();
+        rawO.write(encoded);
+        rawO.flush();
+    }
+
+    /**
+     * Picks a content coding from "Accept-Encoding", gzip wins a tie with deflate.
+     * @return "gzip", "deflate" or null if the client takes neither
+     */
+    public static String negotiateEncoding(String acceptEncoding){
+        if(acceptEncoding == null)
+            return null;
+        double gzip = -1, deflate = -1, any = -1;
+        for(String element : acceptEncoding.split(",")){
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if(param.startsWith("q=")){
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    }catch (NumberFormatException e){
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding){
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case "deflate":
+                    deflate = q;
+                    break;
+                case "*":
+                    any = q;
+                    break;
+            }
+        }
+        if(gzip == -1)
+            gzip = any;
+        if(deflate == -1)
+            deflate = any;
+        if(gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    /**
+     * Text, JSON, XML and script types, everything else is assumed to be compressed already.
+     */
+    public static boolean isCompressible(String contentType){
+        if(contentType == null)
+            return false;
+        String type = contentType.toLowerCase();
+        int parameters = type.indexOf(';');
+        if(parameters != -1)
+            type = type.substring(0, parameters).trim();
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+                || type.equals("application/json") || type.equals("application/xml")
+                || type.equals("application/javascript") || type.equals("application/x-javascript");
+    }
+
+    /**
+     * @param encoding "gzip" or "deflate" (zlib format, which is what HTTP calls deflate)
+     */
+    public static DeflaterOutputStream encodingStream(OutputStream out, String encoding) throws IOException{
+        if(encoding.equals("gzip"))
+            return new GZIPOutputStream(out, 8 * 1024);
+        //Default deflater, so close() also frees its native memory
+        return new DeflaterOutputStream(out, false);
+    }
+
+    public static byte[] encode(byte[] data, String encoding) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (DeflaterOutputStream encoder = encodingStream(out, encoding)){
+            encoder.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Entity tag of an encoded representation, it must differ from the identity one.
+     */
+    public static String encodedETag(String etag, String encoding){
+        if(encoding == null)
+            return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
     public static byte[] readBodyBytes(InputStream rawI, int size) throws IOException{
         byte[] bytes = new byte[size];
         int bytesRead = 0;
@@ -106,10 +244,191 @@ public class Http {
 
     public static void writeHeader(Writer writer, long contentLength, String contentType) throws IOException {
         writer.write(OK);
+        writeContentHeaders(writer, contentLength, contentType);
+    }
+
+    /**
+     * Writes the last two header lines and the blank line ending the header.
+     */
+    public static void writeContentHeaders(Writer writer, long contentLength, String contentType) throws IOException {
         writer.write(CONTENT_LENGTH + contentLength + NEW_LINE);
         writer.write(CONTENT_TYPE + contentType + NEW_LINE + NEW_LINE);
     }
 
+    /**
+     * Parses a "Range" header against a file of the given size. Overlapping and adjacent
+     * ranges are coalesced.
+     * @return null if the header is absent, malformed or asks for too many ranges,
+     * empty list if no range is satisfiable
+     */
+    public static List<Range> parseRanges(String header, long size){
+        if(header == null || !header.trim().startsWith("bytes="))
+            return null;
+        String[] specs = header.trim().substring(6).split(",");
+        if(specs.length > MAX_RANGES)
+            return null;
+
+        List<Range> ranges = new ArrayList<>();
+        for(String spec : specs){
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash == -1)
+                return null;
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if(first.isEmpty()){
+                    long suffix = Long.parseLong(last);
+                    if(suffix < 0)
+                        return null;
+                    if(suffix > 0 && size > 0)
+                        ranges.add(new Range(Math.max(0, size - suffix), size - 1));
+                }else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if(start < 0 || end < start)
+                        return null;
+                    if(start < size)
+                        ranges.add(new Range(start, Math.min(end, size - 1)));
+                }
+            }catch (NumberFormatException e){
+                return null;
+            }
+        }
+
+        if(ranges.size() < 2)
+            return ranges;
+        ranges.sort(Comparator.comparingLong(r -> r.start));
+        List<Range> merged = new ArrayList<>();
+        Range current = ranges.get(0);
+        for(Range next : ranges.subList(1, ranges.size())){
+            if(next.start <= current.end + 1){
+                current = new Range(current.start, Math.max(current.end, next.end));
+            }else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    public static String fileETag(long lastModified, long size){
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    private static String opaqueTag(String etag){
+        etag = etag.trim();
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list against the current entity tag.
+     */
+    public static boolean etagMatches(String ifNoneMatch, String etag){
+        if(ifNoneMatch.trim().equals("*"))
+            return true;
+        String current = opaqueTag(etag);
+        for(String candidate : ifNoneMatch.split(",")){
+            if(opaqueTag(candidate).equals(current))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when there is no entity tag condition.
+     * @param lastModified modification time in milliseconds, -1 if the resource has none
+     */
+    public static boolean isNotModified(Map<String, String> header, String etag, long lastModified){
+        String ifNoneMatch = header.get("If-None-Match");
+        if(ifNoneMatch != null)
+            return etagMatches(ifNoneMatch, etag);
+        long since = parseHttpDate(header.get("If-Modified-Since"));
+        return since != -1 && lastModified != -1 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * 304 carries the validators but no body and no Content-Length.
+     */
+    public static void writeNotModified(Writer writer, String etag, long lastModified) throws IOException{
+        writer.write(NOT_MODIFIED);
+        writer.write(ETAG + etag + NEW_LINE);
+        if(lastModified != -1)
+            writer.write(LAST_MODIFIED + formatHttpDate(lastModified) + NEW_LINE);
+        writer.write(NEW_LINE);
+        writer.flush();
+    }
+
+    public static String formatHttpDate(long millis){
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    /**
+     * @return milliseconds since the epoch or -1 if the value is not an HTTP-date
+     */
+    public static long parseHttpDate(String date){
+        if(date == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }catch (DateTimeParseException e){
+            return -1;
+        }
+    }
+
+    public static void writeEmptyResponse(Writer writer) throws IOException {
+        writer.write(CONTENT_LENGTH + 0 + NEW_LINE + NEW_LINE);
+        writer.flush();
+    }
+
+    /**
+     * Reads the next request line of a persistent connection, skipping empty lines
+     * left between pipelined requests.
+     * @return request line or null if the client closed the connection
+     */
+    public static String readRequestLine(InputStream inputStream) throws IOException{
+        while (true){
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = inputStream.read()) != '\n'){
+                if(c == -1)
+                    return null;
+                if(c != '\r')
+                    sb.append((char)c);
+            }
+            if(sb.length() > 0)
+                return sb.toString();
+        }
+    }
+
+    /**
+     * @return declared body length, 0 if there is no Content-Length header, -1 if it is malformed
+     */
+    public static long contentLength(Map<String, String> header){
+        String content = header.get("Content-Length");
+        if(content == null)
+            return 0;
+        try {
+            long length = Long.parseLong(content.trim());
+            return length < 0 ? -1 : length;
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    public static boolean isKeepAlive(String version, Map<String, String> header){
+        String connection = header.get("Connection");
+        if(connection != null) {
+            if (connection.equalsIgnoreCase("close"))
+                return false;
+            if (connection.equalsIgnoreCase("keep-alive"))
+                return true;
+        }
+        return HTTP_1_1.equals(version);
+    }
+
     public static String readLine(InputStream inputStream) throws IOException{
         StringBuilder sb = new StringBuilder();
         while(true){
@@ -0,0 +1,127 @@
+package utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Buffered connection input that reads request heads with {@link HttpParser}.
+ * Bytes after a head stay in the buffer and are returned by the ordinary read methods,
+ * so the body and any pipelined request are read through the same stream.
+ */
+public class HttpInputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    public HttpInputStream(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * Reads the next request head into {@code head}.
+     * @return false if the connection ended before a request started
+     * @throws HttpParser.HeadTooLargeException if the head is over the parser limits
+     */
+    public boolean readHead(RequestHead head) throws IOException {
+        while (true){
+            int consumed = HttpParser.parseHead(buffer, position, limit - position, head);
+            if(consumed >= 0){
+                position += consumed;
+                return true;
+            }
+            if(!fill()){
+                for(int i = position; i < limit; i++){
+                    if(buffer[i] != '\r' && buffer[i] != '\n')
+                        throw new EOFException("Connection closed inside a request head");
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads more bytes behind the buffered ones, growing the buffer up to the head limit.
+     */
+    private boolean fill() throws IOException {
+        if(position > 0){
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if(limit == buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, HttpParser.MAX_HEAD_SIZE + 1));
+        int result = in.read(buffer, limit, buffer.length - limit);
+        if(result <= 0)
+            return false;
+        limit += result;
+        return true;
+    }
+
+    /**
+     * Moves bytes already read from the connection into {@code dst} without reading more.
+     * @return number of bytes moved
+     */
+    public int readBuffered(ByteBuffer dst){
+        int result = Math.min(dst.remaining(), limit - position);
+        dst.put(buffer, position, result);
+        position += result;
+        return result;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(position == limit){
+            position = limit = 0;
+            if(!fill())
+                return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+        if(position == limit){
+            //Large reads skip the copy through the buffer
+            if(len >= buffer.length)
+                return in.read(b, off, len);
+            position = limit = 0;
+            if(!fill())
+                return -1;
+        }
+        int result = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, result);
+        position += result;
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0)
+            return 0;
+        if(position < limit){
+            int skipped = (int) Math.min(n, limit - position);
+            position += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - position) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,196 @@
+package utils;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a request head straight from bytes. Line ends are found eight bytes at a time,
+ * well-known header names are matched in place and resolved to constant Strings, and
+ * Content-Length is read as a number without ever becoming a String.
+ * The parser keeps no state: given the bytes received so far it either parses the whole
+ * head or reports that more are needed.
+ */
+public class HttpParser {
+    public static final int MAX_REQUEST_LINE = 8 * 1024;
+    public static final int MAX_HEAD_SIZE = 16 * 1024;
+    public static final int MAX_HEADERS = 100;
+
+    private static final VarHandle LONGS
+            = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long NEW_LINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String[] KNOWN_HEADERS = {
+            CONTENT_LENGTH, "Authorization", "Content-Type", "Range", "Host", "Connection",
+            "Transfer-Encoding", "If-None-Match", "If-Modified-Since", "If-Range", "Accept-Encoding"
+    };
+    private static final byte[][] KNOWN_LOWER = new byte[KNOWN_HEADERS.length][];
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++)
+            KNOWN_LOWER[i] = KNOWN_HEADERS[i].toLowerCase().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Thrown when a request line or head is over its limit, answered with 431.
+     */
+    public static class HeadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public HeadTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private HttpParser() {
+    }
+
+    /**
+     * @return index of the first {@code '\n'} in {@code b[from, to)} or -1
+     */
+    static int indexOfNewLine(byte[] b, int from, int to){
+        int i = from;
+        for(; i + 8 <= to; i += 8){
+            long word = (long) LONGS.get(b, i) ^ NEW_LINES;
+            //High bit of the lowest zero byte is set, bytes above it may be false positives
+            long found = (word - LOW_BITS) & ~word & HIGH_BITS;
+            if(found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for(; i < to; i++){
+            if(b[i] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte c){
+        for(int i = from; i < to; i++){
+            if(b[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private static String knownHeader(byte[] b, int from, int to){
+        int length = to - from;
+        for (int i = 0; i < KNOWN_LOWER.length; i++) {
+            byte[] name = KNOWN_LOWER[i];
+            if(name.length != length)
+                continue;
+            int j = 0;
+            for(; j < length; j++){
+                int c = b[from + j];
+                if(c >= 'A' && c <= 'Z')
+                    c += 'a' - 'A';
+                if(c != name[j])
+                    break;
+            }
+            if(j == length)
+                return KNOWN_HEADERS[i];
+        }
+        return null;
+    }
+
+    private static long parseLength(byte[] b, int from, int to){
+        if(from == to || to - from > 18)
+            return -1;
+        long value = 0;
+        for(int i = from; i < to; i++){
+            int digit = b[i] - '0';
+            if(digit < 0 || digit > 9)
+                return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static String string(byte[] b, int from, int to){
+        return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void parseRequestLine(byte[] b, int from, int to, RequestHead head){
+        int methodEnd = indexOf(b, from, to, (byte) ' ');
+        if(methodEnd == -1){
+            head.setRequestLine(string(b, from, to), null, "");
+            return;
+        }
+        int targetStart = methodEnd + 1;
+        while (targetStart < to && b[targetStart] == ' ')
+            targetStart++;
+        int targetEnd = indexOf(b, targetStart, to, (byte) ' ');
+        if(targetEnd == -1)
+            targetEnd = to;
+        int versionStart = targetEnd;
+        while (versionStart < to && b[versionStart] == ' ')
+            versionStart++;
+        head.setRequestLine(string(b, from, methodEnd),
+                targetStart == targetEnd ? null : string(b, targetStart, targetEnd),
+                string(b, versionStart, to).trim());
+    }
+
+    /**
+     * Parses one head from {@code b[off, off + len)}. Blank lines before the request line are skipped.
+     * @return number of bytes the head took including its blank line, -1 if it is not complete yet
+     * @throws HeadTooLargeException if the request line, the head or the number of fields is over its limit
+     */
+    public static int parseHead(byte[] b, int off, int len, RequestHead head) throws HeadTooLargeException {
+        head.reset();
+        int end = off + len;
+        int p = off;
+        while (p < end && (b[p] == '\r' || b[p] == '\n'))
+            p++;
+        int start = p;
+
+        int lineEnd = indexOfNewLine(b, p, end);
+        if(lineEnd == -1){
+            if(end - start > MAX_REQUEST_LINE)
+                throw new HeadTooLargeException("Request line is over " + MAX_REQUEST_LINE + " bytes");
+            return -1;
+        }
+        if(lineEnd - start > MAX_REQUEST_LINE)
+            throw new HeadTooLargeException("Request line is over " + MAX_REQUEST_LINE + " bytes");
+        parseRequestLine(b, p, lineEnd > p && b[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd, head);
+        p = lineEnd + 1;
+
+        int fields = 0;
+        while (true){
+            lineEnd = indexOfNewLine(b, p, end);
+            if(lineEnd == -1){
+                if(end - start > MAX_HEAD_SIZE)
+                    throw new HeadTooLargeException("Request head is over " + MAX_HEAD_SIZE + " bytes");
+                return -1;
+            }
+            if(lineEnd + 1 - start > MAX_HEAD_SIZE)
+                throw new HeadTooLargeException("Request head is over " + MAX_HEAD_SIZE + " bytes");
+            int lineStop = lineEnd > p && b[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if(lineStop == p)
+                return lineEnd + 1 - off;
+            if(++fields > MAX_HEADERS)
+                throw new HeadTooLargeException("More than " + MAX_HEADERS + " header fields");
+
+            int colon = indexOf(b, p, lineStop, (byte) ':');
+            if(colon > p){
+                int valueStart = colon + 1;
+                while (valueStart < lineStop && (b[valueStart] == ' ' || b[valueStart] == '\t'))
+                    valueStart++;
+                int valueEnd = lineStop;
+                while (valueEnd > valueStart && (b[valueEnd - 1] == ' ' || b[valueEnd - 1] == '\t'))
+                    valueEnd--;
+
+                String name = knownHeader(b, p, colon);
+                if(name == null)
+                    name = string(b, p, colon);
+                else if(name == CONTENT_LENGTH)
+                    head.setContentLength(parseLength(b, valueStart, valueEnd));
+                head.getHeaders().put(name, string(b, valueStart, valueEnd));
+            }
+            p = lineEnd + 1;
+        }
+    }
+}
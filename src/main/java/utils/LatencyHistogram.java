@@ -0,0 +1,83 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of nanosecond latencies in the style of HdrHistogram: every power of two
+ * is split into 32 linear buckets, so a reported value is within about 3% of the real one
+ * from 1ns up to 2^40ns (18 minutes); longer values land in the last bucket.
+ * Recording is a few bit operations and one atomic increment, it never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    static int index(long value){
+        if(value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if(magnitude > MAX_MAGNITUDE)
+            return BUCKETS - 1;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return largest value that falls into the bucket
+     */
+    static long highestValue(int index){
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long nanos){
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    public long getCount(){
+        return count.sum();
+    }
+
+    public long getSum(){
+        return sum.sum();
+    }
+
+    /**
+     * Reads all buckets once and answers every quantile from that copy, so the values
+     * are consistent with each other while recording goes on.
+     * @param quantiles ascending, between 0 and 1
+     * @return value in nanoseconds per quantile, 0 if nothing was recorded
+     */
+    public long[] quantiles(double... quantiles){
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] values = new long[quantiles.length];
+        if(total == 0)
+            return values;
+        long seen = 0;
+        int bucket = -1;
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            while (seen < rank && bucket < BUCKETS - 1)
+                seen += snapshot[++bucket];
+            values[q] = highestValue(bucket);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,34 @@
+package utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts bytes received.
+ */
+public class MeteredInputStream extends FilterInputStream {
+    private final LongAdder bytes;
+
+    public MeteredInputStream(InputStream in, LongAdder bytes) {
+        super(in);
+        this.bytes = bytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b != -1)
+            bytes.increment();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = in.read(b, off, len);
+        if(result > 0)
+            bytes.add(result);
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+package utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import static utils.ServerConstants.CONNECTION_CLOSE;
+
+/**
+ * Counts bytes sent and picks the status code out of the status line passing through,
+ * so responses are metered wherever in the handler they are written. For the same reason
+ * it is where the last response on a connection gets its "Connection: close".
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+    //"HTTP/1.1 " comes before the three digits
+    private static final int STATUS_START = 9;
+    private static final int STATUS_END = STATUS_START + 3;
+    private static final byte[] CLOSE_HEADER = CONNECTION_CLOSE.getBytes(StandardCharsets.US_ASCII);
+
+    private final LongAdder bytes;
+    private int position = STATUS_END;
+    private int status;
+    private boolean closing;
+
+    public MeteredOutputStream(OutputStream out, LongAdder bytes) {
+        super(out);
+        this.bytes = bytes;
+    }
+
+    /**
+     * The next bytes written begin a response.
+     */
+    public void startResponse(){
+        position = 0;
+        status = 0;
+    }
+
+    /**
+     * The connection is closed after the response that begins next, its head says so
+     * right after the status line and the client won't send another request on it.
+     */
+    public void closeAfterResponse(){
+        closing = true;
+    }
+
+    /**
+     * @return status code of the current response, 0 if its status line was not written yet
+     */
+    public int getStatus(){
+        return position >= STATUS_END ? status : 0;
+    }
+
+    private void scan(int b){
+        if(position >= STATUS_START)
+            status = status * 10 + (b - '0');
+        position++;
+    }
+
+    private void announceClose() throws IOException {
+        closing = false;
+        out.write(CLOSE_HEADER);
+        bytes.add(CLOSE_HEADER.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytes.increment();
+        if(position < STATUS_END)
+            scan(b);
+        if(closing && b == '\n')
+            announceClose();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closing){
+            for (int i = off; i < off + len; i++) {
+                if(b[i] == '\n'){
+                    pass(b, off, i + 1 - off);
+                    announceClose();
+                    pass(b, i + 1, off + len - i - 1);
+                    return;
+                }
+            }
+        }
+        pass(b, off, len);
+    }
+
+    private void pass(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes.add(len);
+        for (int i = off; position < STATUS_END && i < off + len; i++)
+            scan(b[i]);
+    }
+}
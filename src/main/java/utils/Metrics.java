@@ -0,0 +1,150 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics of one server: a {@link LatencyHistogram} per route, responses per status code,
+ * bytes in and out, requests in flight and gauges and counters registered at start up. Recording only
+ * touches counters that exist from the start. {@link #write} renders everything in the
+ * Prometheus text format, latencies as summaries.
+ */
+public class Metrics<R extends Enum<R> & Metrics.Route> {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int MAX_STATUS = 600;
+
+    /**
+     * A route of a server, rendered as the method and route labels.
+     */
+    public interface Route {
+        String method();
+
+        String route();
+    }
+
+    private static final class Polled {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+
+        Polled(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final String prefix;
+    private final Map<R, LatencyHistogram> latencies;
+    private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final List<Polled> polled = new ArrayList<>();
+
+    /**
+     * @param prefix of every metric name, e.g. "resource"
+     */
+    public Metrics(String prefix, Class<R> routes) {
+        this.prefix = prefix;
+        this.latencies = new EnumMap<>(routes);
+        for(R route : routes.getEnumConstants())
+            latencies.put(route, new LatencyHistogram());
+    }
+
+    public void requestStarted(){
+        inFlight.increment();
+    }
+
+    /**
+     * @param status 0 if no response was written
+     */
+    public void requestFinished(R route, int status, long startNanos){
+        latencies.get(route).record(System.nanoTime() - startNanos);
+        if(status > 0 && status < MAX_STATUS)
+            statuses.incrementAndGet(status);
+        inFlight.decrement();
+    }
+
+    public LongAdder getBytesIn(){
+        return bytesIn;
+    }
+
+    public LongAdder getBytesOut(){
+        return bytesOut;
+    }
+
+    /**
+     * Registers a value read at every scrape, e.g. the queue depth of an executor.
+     */
+    public void gauge(String name, String help, LongSupplier value){
+        register(name, help, "gauge", value);
+    }
+
+    /**
+     * Registers a count that only goes up, e.g. cache hits, exported as name_total.
+     */
+    public void counter(String name, String help, LongSupplier value){
+        register(name + "_total", help, "counter", value);
+    }
+
+    private synchronized void register(String name, String help, String type, LongSupplier value){
+        polled.removeIf(metric -> metric.name.equals(name));
+        polled.add(new Polled(name, help, type, value));
+    }
+
+    private void header(Writer writer, String name, String help, String type) throws IOException {
+        writer.write("# HELP " + prefix + "_" + name + " " + help + "\n");
+        writer.write("# TYPE " + prefix + "_" + name + " " + type + "\n");
+    }
+
+    private void sample(Writer writer, String name, String labels, String value) throws IOException {
+        writer.write(prefix + "_" + name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + value + "\n");
+    }
+
+    private static String seconds(long nanos){
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    public synchronized void write(Writer writer) throws IOException {
+        header(writer, "request_duration_seconds", "Time from a parsed request head to the flushed response.", "summary");
+        for(Map.Entry<R, LatencyHistogram> entry : latencies.entrySet()){
+            LatencyHistogram histogram = entry.getValue();
+            String labels = "method=\"" + entry.getKey().method() + "\",route=\"" + entry.getKey().route() + "\"";
+            long[] values = histogram.quantiles(QUANTILES);
+            for (int i = 0; i < QUANTILES.length; i++)
+                sample(writer, "request_duration_seconds", labels + ",quantile=\"" + QUANTILES[i] + "\"", seconds(values[i]));
+            sample(writer, "request_duration_seconds_sum", labels, seconds(histogram.getSum()));
+            sample(writer, "request_duration_seconds_count", labels, Long.toString(histogram.getCount()));
+        }
+
+        header(writer, "responses_total", "Responses by status code.", "counter");
+        for (int status = 0; status < MAX_STATUS; status++) {
+            long count = statuses.get(status);
+            if(count > 0)
+                sample(writer, "responses_total", "code=\"" + status + "\"", Long.toString(count));
+        }
+
+        header(writer, "received_bytes_total", "Bytes read from clients.", "counter");
+        sample(writer, "received_bytes_total", "", Long.toString(bytesIn.sum()));
+        header(writer, "sent_bytes_total", "Bytes written to clients, file bodies included.", "counter");
+        sample(writer, "sent_bytes_total", "", Long.toString(bytesOut.sum()));
+        header(writer, "requests_in_flight", "Requests being served.", "gauge");
+        sample(writer, "requests_in_flight", "", Long.toString(inFlight.sum()));
+
+        for(Polled metric : polled){
+            header(writer, metric.name, metric.help, metric.type);
+            sample(writer, metric.name, "", Long.toString(metric.value.getAsLong()));
+        }
+    }
+}
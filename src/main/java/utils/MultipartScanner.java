@@ -0,0 +1,194 @@
+package utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads multipart/form-data from a channel into a direct buffer. Part bodies are written to
+ * the target channel straight from that buffer, and the delimiter is found by looking for
+ * its first byte eight bytes at a time. Same calls as commons-fileupload's MultipartStream:
+ * {@link #skipPreamble()}, then {@link #readHeaders()} and {@link #readBodyData} per part
+ * while {@link #readBoundary()} returns true.
+ */
+public class MultipartScanner {
+    public static final int MAX_HEADER_SIZE = 10 * 1024;
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final ReadableByteChannel in;
+    //Unread bytes are between position and limit
+    private final ByteBuffer buffer;
+    private final ByteBuffer words;
+    //CRLF--boundary
+    private final byte[] delimiter;
+    private final byte[] dashBoundary;
+
+    /**
+     * @param buffer direct buffer to read into, larger than the part headers and the boundary
+     */
+    public MultipartScanner(ReadableByteChannel in, byte[] boundary, ByteBuffer buffer) {
+        if(buffer.capacity() < MAX_HEADER_SIZE + HEADER_END.length || buffer.capacity() < boundary.length * 2 + 8)
+            throw new IllegalArgumentException("Buffer of " + buffer.capacity() + " bytes is too small");
+        this.in = in;
+        this.buffer = buffer;
+        this.buffer.clear().flip();
+        this.words = buffer.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+        this.delimiter = new byte[boundary.length + 4];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        delimiter[2] = '-';
+        delimiter[3] = '-';
+        System.arraycopy(boundary, 0, delimiter, 4, boundary.length);
+        this.dashBoundary = new byte[boundary.length + 2];
+        System.arraycopy(delimiter, 2, dashBoundary, 0, dashBoundary.length);
+    }
+
+    /**
+     * Reads more bytes behind the unread ones.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        try {
+            int result;
+            do {
+                result = in.read(buffer);
+            }while (result == 0 && buffer.hasRemaining());
+            return result > 0;
+        }finally {
+            buffer.flip();
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (buffer.remaining() < count){
+            if(!fill())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first {@code c} in {@code [from, to)} or -1
+     */
+    private int indexOf(byte c, int from, int to){
+        long pattern = (c & 0xFFL) * LOW_BITS;
+        int i = from;
+        for(; i + 8 <= to; i += 8){
+            long word = words.getLong(i) ^ pattern;
+            long found = (word - LOW_BITS) & ~word & HIGH_BITS;
+            if(found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for(; i < to; i++){
+            if(buffer.get(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of {@code pattern} among the unread bytes or -1
+     */
+    private int indexOf(byte[] pattern){
+        int to = buffer.limit();
+        int last = to - pattern.length;
+        int i = buffer.position();
+        while (i <= last){
+            i = indexOf(pattern[0], i, last + 1);
+            if(i == -1)
+                return -1;
+            int j = 1;
+            while (j < pattern.length && buffer.get(i + j) == pattern[j])
+                j++;
+            if(j == pattern.length)
+                return i;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Skips everything up to the first boundary.
+     * @return true if a part follows it
+     */
+    public boolean skipPreamble() throws IOException {
+        while (true){
+            int found = indexOf(dashBoundary);
+            if(found != -1){
+                buffer.position(found + dashBoundary.length);
+                return readBoundary();
+            }
+            buffer.position(Math.max(buffer.position(), buffer.limit() - dashBoundary.length + 1));
+            if(!fill())
+                return false;
+        }
+    }
+
+    /**
+     * Reads what follows a boundary.
+     * @return true if another part follows, false after the closing boundary
+     */
+    public boolean readBoundary() throws IOException {
+        if(!ensure(2))
+            throw new EOFException("Stream ended after a boundary");
+        byte first = buffer.get();
+        byte second = buffer.get();
+        if(first == '-' && second == '-')
+            return false;
+        if(first == '\r' && second == '\n')
+            return true;
+        throw new IOException("Unexpected characters after a boundary");
+    }
+
+    /**
+     * @return headers of the current part including the blank line that ends them
+     */
+    public String readHeaders() throws IOException {
+        while (true){
+            int found = indexOf(HEADER_END);
+            if(found != -1){
+                byte[] bytes = new byte[found + HEADER_END.length - buffer.position()];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            if(buffer.remaining() > MAX_HEADER_SIZE)
+                throw new IOException("Part headers are over " + MAX_HEADER_SIZE + " bytes");
+            if(!fill())
+                throw new EOFException("Stream ended inside part headers");
+        }
+    }
+
+    /**
+     * Writes the body of the current part to {@code out} and reads past the delimiter behind it.
+     * @return number of bytes written
+     */
+    public long readBodyData(WritableByteChannel out) throws IOException {
+        long written = 0;
+        while (true){
+            int found = indexOf(delimiter);
+            //Bytes that could be the start of a delimiter stay until more arrive
+            int end = found != -1 ? found : Math.max(buffer.position(), buffer.limit() - delimiter.length + 1);
+            if(end > buffer.position()){
+                ByteBuffer data = buffer.duplicate();
+                data.limit(end);
+                while (data.hasRemaining())
+                    written += out.write(data);
+                buffer.position(end);
+            }
+            if(found != -1){
+                buffer.position(found + delimiter.length);
+                return written;
+            }
+            if(!fill())
+                throw new EOFException("Stream ended inside a part");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Request line and header fields of one request, filled in by {@link HttpParser}.
+ * A connection keeps one instance and reuses it for every request it serves.
+ * Header names are case-insensitive.
+ */
+public class RequestHead {
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private String method;
+    private String target;
+    private String version;
+    private long contentLength;
+
+    void reset(){
+        headers.clear();
+        method = null;
+        target = null;
+        version = "";
+        contentLength = 0;
+    }
+
+    void setRequestLine(String method, String target, String version){
+        this.method = method;
+        this.target = target;
+        this.version = version;
+    }
+
+    void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return request target or null if the request line has none
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return protocol version, empty for a request line without one
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Same contract as {@link Http#contentLength(Map)}.
+     * @return 0 if absent, -1 if malformed
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getRequestLine(){
+        return target == null ? method : method + " " + target + " " + version;
+    }
+
+    @Override
+    public String toString() {
+        return getRequestLine() + " " + headers;
+    }
+}
@@ -5,14 +5,31 @@ import org.json.JSONObject;
 public class ServerConstants {
 
     public static final String OK = "HTTP/1.1 200 OK\r\n";
+    public static final String PARTIAL_CONTENT = "HTTP/1.1 206 Partial Content\r\n";
+    public static final String NOT_MODIFIED = "HTTP/1.1 304 Not Modified\r\n";
+    public static final String RANGE_NOT_SATISFIABLE = "HTTP/1.1 416 Range Not Satisfiable\r\n";
     public static final String FORBIDDEN = "HTTP/1.1 403 Forbidden\r\n";
     public static final String UNAUTHORIZED = "HTTP/1.1 401 Unauthorized\r\n";
     public static final String OPERATION_NOT_SUPPORTED = "HTTP/1.1 505 HTTP Version Not Supported\r\n";
     public static final String NOT_IMPLEMENTED = "HTTP/1.1 501 Not Implemented\r\n";
+    public static final String SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\n";
+    public static final String HEADER_TOO_LARGE = "HTTP/1.1 431 Request Header Fields Too Large\r\n";
     public static final String NEW_LINE = "\r\n";
+    public static final String HTTP_1_1 = "HTTP/1.1";
     public static final String CONTENT_HTML = "Content-Type: text/html \r\n";
     public static final String CONTENT_LENGTH = "Content-Length: ";
     public static final String CONTENT_TYPE = "Content-Type: ";
+    public static final String CONTENT_RANGE = "Content-Range: ";
+    public static final String ACCEPT_RANGES = "Accept-Ranges: bytes\r\n";
+    public static final String ETAG = "ETag: ";
+    public static final String LAST_MODIFIED = "Last-Modified: ";
+    public static final String NO_CACHE = "Cache-Control: no-cache\r\n";
+    public static final String CONNECTION_CLOSE = "Connection: close\r\n";
+    public static final String TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n";
+    public static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String CONTENT_ENCODING = "Content-Encoding: ";
+    public static final String VARY_ACCEPT_ENCODING = "Vary: Accept-Encoding\r\n";
+    public static final String RETRY_AFTER = "Retry-After: ";
     public static final String COOKIE = "Set-Cookie: ";
     public static final String MOVED_PERMANENTLY = "HTTP/1.1 301 Moved Permanently\r\n";
     public static final String LOCATION = "Location: ";
@@ -20,6 +37,7 @@ public class ServerConstants {
     public static final String NO_CONTENT = "HTTP/1.1 204 No Content\r\n";
     public static final String SERVER_ERROR= "HTTP/1.1 500 Internal authorization.Server Error\r\n";
     public static final String ERROR400= "HTTP/1.1 400 Not Found\r\n";
+    public static final String INSUFFICIENT_STORAGE = "HTTP/1.1 507 Insufficient Storage\r\n";
 
     public static final String USER_HAS_NO_ACCESSED = new JSONObject().put("error", "User has no accesses").toString();
     public static final String ACCESS_DENIED = new JSONObject().put("error", "Access denied").toString();
@@ -33,8 +51,15 @@ public class ServerConstants {
     public static final String ACC_FORBIDDEN = new JSONObject().put("error", "Forbidden").toString();
     public static final String ERROR_ADDING_ACC = new JSONObject().put("error", "Error adding access user does not exist").toString();
     public static final String USER_HAS_ACCESS = new JSONObject().put("error", "User has already possess this access").toString();
+    public static final String NO_SPACE = new JSONObject().put("error", "Not enough space for the file").toString();
     public static final String FILE_EXIST = new JSONObject().put("error", "File already exists, so it was overwrote").toString();
 
+    public static final int KEEP_ALIVE_TIMEOUT = 15_000;
+    public static final int MAX_KEEP_ALIVE_REQUESTS = 100;
+    public static final long MAX_BODY_DRAIN = 64 * 1024;
+    public static final int MAX_RANGES = 16;
+    public static final int MIN_COMPRESS_SIZE = 1024;
+
 
 
 
@@ -0,0 +1,144 @@
+package utils;
+
+import com.auth0.jwt.algorithms.Algorithm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Token signing keys shared by both servers. A key is configured as {@code kid:ALG:path},
+ * where ALG is RS256, ES256 or EdDSA (Ed25519) and the file holds a PKCS#8 private key
+ * or an X.509 public key, PEM or DER.
+ */
+public class TokenKeys {
+    public static final String RS256 = "RS256";
+    public static final String ES256 = "ES256";
+    public static final String EDDSA = "EdDSA";
+
+    private TokenKeys() {
+    }
+
+    public static class KeySpec {
+        private final String kid;
+        private final String algorithm;
+        private final Path path;
+
+        public KeySpec(String kid, String algorithm, Path path) {
+            this.kid = kid;
+            this.algorithm = algorithm;
+            this.path = path;
+        }
+
+        public String getKid() {
+            return kid;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return kid + ":" + algorithm + ":" + path;
+        }
+    }
+
+    /**
+     * Parses a comma separated list of {@code kid:ALG:path}.
+     * @throws IllegalArgumentException on a malformed entry or an unsupported algorithm
+     */
+    public static List<KeySpec> parse(String config){
+        List<KeySpec> keys = new ArrayList<>();
+        for(String entry : config.split(",")){
+            entry = entry.trim();
+            if(entry.isEmpty())
+                continue;
+            String[] parts = entry.split(":", 3);
+            if(parts.length != 3 || parts[0].isEmpty() || parts[2].isEmpty())
+                throw new IllegalArgumentException("Key must be kid:ALG:path, got " + entry);
+            keyAlgorithm(parts[1]);
+            keys.add(new KeySpec(parts[0], parts[1], Paths.get(parts[2])));
+        }
+        return keys;
+    }
+
+    private static String keyAlgorithm(String algorithm){
+        switch (algorithm){
+            case RS256: return "RSA";
+            case ES256: return "EC";
+            case EDDSA: return "Ed25519";
+            default: throw new IllegalArgumentException("Unsupported token algorithm " + algorithm);
+        }
+    }
+
+    public static Algorithm signing(String algorithm, PrivateKey key){
+        switch (algorithm){
+            case RS256: return Algorithm.RSA256(null, (RSAPrivateKey) key);
+            case ES256: return Algorithm.ECDSA256(null, (ECPrivateKey) key);
+            case EDDSA: return new EdDSAAlgorithm(null, key);
+            default: throw new IllegalArgumentException("Unsupported token algorithm " + algorithm);
+        }
+    }
+
+    public static Algorithm verifying(String algorithm, PublicKey key){
+        switch (algorithm){
+            case RS256: return Algorithm.RSA256((RSAPublicKey) key, null);
+            case ES256: return Algorithm.ECDSA256((ECPublicKey) key, null);
+            case EDDSA: return new EdDSAAlgorithm(key, null);
+            default: throw new IllegalArgumentException("Unsupported token algorithm " + algorithm);
+        }
+    }
+
+    public static Algorithm signing(KeySpec spec) throws IOException, GeneralSecurityException {
+        return signing(spec.getAlgorithm(), readPrivateKey(spec.getPath(), spec.getAlgorithm()));
+    }
+
+    public static Algorithm verifying(KeySpec spec) throws IOException, GeneralSecurityException {
+        return verifying(spec.getAlgorithm(), readPublicKey(spec.getPath(), spec.getAlgorithm()));
+    }
+
+    public static PrivateKey readPrivateKey(Path path, String algorithm) throws IOException, GeneralSecurityException {
+        return keyFactory(algorithm).generatePrivate(new PKCS8EncodedKeySpec(readKeyBytes(path)));
+    }
+
+    public static PublicKey readPublicKey(Path path, String algorithm) throws IOException, GeneralSecurityException {
+        return keyFactory(algorithm).generatePublic(new X509EncodedKeySpec(readKeyBytes(path)));
+    }
+
+    private static KeyFactory keyFactory(String algorithm) throws NoSuchAlgorithmException {
+        return KeyFactory.getInstance(keyAlgorithm(algorithm));
+    }
+
+    /**
+     * @return DER bytes of the key, decoded from base64 if the file is PEM
+     */
+    private static byte[] readKeyBytes(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        String text = new String(bytes, StandardCharsets.US_ASCII);
+        if(!text.startsWith("-----BEGIN"))
+            return bytes;
+        text = text.replaceAll("-----(BEGIN|END) [A-Z ]+-----", "").replaceAll("\\s", "");
+        return Base64.getDecoder().decode(text);
+    }
+}